@@ -1,15 +1,48 @@
 package simpledb.buffer;
 
+import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
+ * The manager keeps a concurrent map from each assigned block to its buffer,
+ * so that finding an existing buffer does not require
+ * a scan of the buffer pool.
+ * The choice of which unpinned buffer to replace is
+ * delegated to a {@link ReplacementPolicy}.
+ * <p>
+ * There is no manager-wide lock.
+ * Each buffer acts as the latch for its own frame:
+ * its pin count and block assignment only change while
+ * holding the buffer's monitor.
+ * A thread that finds a buffer in the map therefore latches it
+ * and checks that it is still assigned to the desired block,
+ * retrying if the buffer was replaced in the meantime.
+ * <p>
+ * Runs of consecutive blocks are written (when flushing)
+ * and read (when prefetching) with a single vectored I/O call.
+ * Such an operation latches several buffers at once;
+ * to avoid deadlock, they are always latched in the
+ * order of their position in the buffer pool.
  * @author Edward Sciore
  *
  */
 class BasicBufferMgr {
+   /**
+    * The maximum number of blocks read or written in a single I/O call.
+    */
+   static final int MAX_RUN = 64;
+   
    private Buffer[] bufferpool;
-   private int numAvailable;
+   private Map<Buffer,Integer> frames = new IdentityHashMap<Buffer,Integer>();
+   private ConcurrentMap<Block,Buffer> bufferMap;
+   private ReplacementPolicy policy;
+   private AtomicInteger numAvailable;
+   private ConcurrentMap<Integer,Set<Buffer>> dirtyBuffers
+         = new ConcurrentHashMap<Integer,Set<Buffer>>();
    
    /**
     * Creates a buffer manager having the specified number 
@@ -23,22 +56,123 @@ class BasicBufferMgr {
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
     * @param numbuffs the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
     */
-   BasicBufferMgr(int numbuffs) {
+   BasicBufferMgr(int numbuffs, String policyname) {
       bufferpool = new Buffer[numbuffs];
-      numAvailable = numbuffs;
-      for (int i=0; i<numbuffs; i++)
-         bufferpool[i] = new Buffer();
+      bufferMap = new ConcurrentHashMap<Block,Buffer>(2 * numbuffs);
+      numAvailable = new AtomicInteger(numbuffs);
+      for (int i=0; i<numbuffs; i++) {
+         bufferpool[i] = new Buffer(this);
+         frames.put(bufferpool[i], i);
+      }
+      policy = createPolicy(policyname);
    }
    
    /**
     * Flushes the dirty buffers modified by the specified transaction.
+    * Only the buffers on the transaction's dirty list are examined.
+    * A buffer on the list may since have been flushed
+    * (and possibly reassigned), in which case it is skipped.
+    * Buffers holding consecutive blocks of a file are
+    * written together.
     * @param txnum the transaction's id number
     */
-   synchronized void flushAll(int txnum) {
-      for (Buffer buff : bufferpool)
-         if (buff.isModifiedBy(txnum))
-         buff.flush();
+   void flushAll(int txnum) {
+      Set<Buffer> dirty = dirtyBuffers.remove(txnum);
+      if (dirty != null)
+         flushRuns(txnum, dirty);
+   }
+   
+   /**
+    * Flushes the dirty buffers of the specified file
+    * that were modified by the specified transaction,
+    * and removes them from the transaction's dirty list.
+    * @param txnum the transaction's id number
+    * @param filename the name of the file
+    */
+   void flushFile(int txnum, String filename) {
+      Set<Buffer> dirty = dirtyBuffers.get(txnum);
+      if (dirty == null)
+         return;
+      List<Buffer> infile = new ArrayList<Buffer>();
+      Iterator<Buffer> iter = dirty.iterator();
+      while (iter.hasNext()) {
+         Buffer buff = iter.next();
+         Block blk = buff.block();
+         if (blk != null && blk.fileName().equals(filename)) {
+            infile.add(buff);
+            iter.remove();
+         }
+      }
+      flushRuns(txnum, infile);
+   }
+   
+   /**
+    * Adds the buffer to the dirty list of the specified transaction.
+    * This method is called by the buffer the first time the
+    * transaction modifies it.
+    * The dirty list of a transaction is a concurrent set,
+    * because the workers of a parallel recovery
+    * modify buffers on behalf of the same transaction.
+    * @param txnum the id of the modifying transaction
+    * @param buff the modified buffer
+    */
+   void modified(int txnum, Buffer buff) {
+      Set<Buffer> dirty = dirtyBuffers.get(txnum);
+      if (dirty == null) {
+         dirty = Collections.newSetFromMap(new ConcurrentHashMap<Buffer,Boolean>());
+         Set<Buffer> existing = dirtyBuffers.putIfAbsent(txnum, dirty);
+         if (existing != null)
+            dirty = existing;
+      }
+      dirty.add(buff);
+   }
+   
+   /**
+    * Removes the dirty list of the specified transaction,
+    * which has finished without flushing its buffers.
+    * The buffers remain dirty, and are written
+    * when they are replaced or flushed in the background.
+    * @param txnum the transaction's id number
+    */
+   void forget(int txnum) {
+      dirtyBuffers.remove(txnum);
+   }
+   
+   /**
+    * Returns the smallest recovery LSN of the buffers,
+    * or the specified bound if it is smaller.
+    * Each buffer is latched in turn, so a modification
+    * whose log record was written before the method was called
+    * is seen, unless its buffer has since been written to disk.
+    * @param bound the value returned if no buffer has a smaller recovery LSN
+    * @return the LSN from which the log must be redone
+    */
+   long recoveryLSN(long bound) {
+      long lsn = bound;
+      for (Buffer buff : bufferpool) {
+         long reclsn = buff.recoveryLSN();
+         if (reclsn >= 0)
+            lsn = Math.min(lsn, reclsn);
+      }
+      return lsn;
+   }
+   
+   /**
+    * Flushes the dirty buffers that are not currently pinned.
+    * This method is called by the {@link BufferFlusher} thread.
+    * A buffer is skipped if it becomes pinned before it can be latched.
+    */
+   void flushUnpinned() {
+      for (Buffer buff : bufferpool) {
+         if (buff.isPinned() || !buff.isModified())
+            continue;
+         synchronized (buff) {
+            if (!buff.isPinned())
+               buff.flush();
+         }
+      }
    }
    
    /**
@@ -50,18 +184,45 @@ class BasicBufferMgr {
     * @param blk a reference to a disk block
     * @return the pinned buffer
     */
-   synchronized Buffer pin(Block blk) {
-      Buffer buff = findExistingBuffer(blk);
-      if (buff == null) {
+   Buffer pin(Block blk) {
+      while (true) {
+         Buffer buff = findExistingBuffer(blk);
+         if (buff != null) {
+            synchronized (buff) {
+               if (blk.equals(buff.block())) {
+                  pinBuffer(buff);
+                  return buff;
+               }
+            }
+            // the buffer was replaced after we found it
+            bufferMap.remove(blk, buff);
+            continue;
+         }
          buff = chooseUnpinnedBuffer();
          if (buff == null)
             return null;
-         buff.assignToBlock(blk);
+         synchronized (buff) {
+            if (buff.isPinned())
+               continue;  // pinned by another thread since it was chosen
+            if (bufferMap.putIfAbsent(blk, buff) != null) {
+               policy.unpinned(buff);  // another thread is reading the block
+               continue;
+            }
+            Block oldblk = buff.block();
+            try {
+               buff.assignToBlock(blk);
+            }
+            catch (RuntimeException e) {
+               bufferMap.remove(blk, buff);
+               policy.unpinned(buff);
+               throw e;
+            }
+            if (oldblk != null)
+               bufferMap.remove(oldblk, buff);
+            pinBuffer(buff);
+            return buff;
+         }
       }
-      if (!buff.isPinned())
-         numAvailable--;
-      buff.pin();
-      return buff;
    }
    
    /**
@@ -73,24 +234,73 @@ class BasicBufferMgr {
     * @param fmtr a pageformatter object, used to format the new block
     * @return the pinned buffer
     */
-   synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
-      Buffer buff = chooseUnpinnedBuffer();
-      if (buff == null)
-         return null;
-      buff.assignToNew(filename, fmtr);
-      numAvailable--;
-      buff.pin();
-      return buff;
+   Buffer pinNew(String filename, PageFormatter fmtr) {
+      while (true) {
+         Buffer buff = chooseUnpinnedBuffer();
+         if (buff == null)
+            return null;
+         synchronized (buff) {
+            if (buff.isPinned())
+               continue;
+            Block oldblk = buff.block();
+            try {
+               buff.assignToNew(filename, fmtr);
+            }
+            catch (RuntimeException e) {
+               policy.unpinned(buff);
+               throw e;
+            }
+            if (oldblk != null)
+               bufferMap.remove(oldblk, buff);
+            bufferMap.put(buff.block(), buff);
+            pinBuffer(buff);
+            return buff;
+         }
+      }
    }
    
    /**
     * Unpins the specified buffer.
     * @param buff the buffer to be unpinned
+    * @return true if the buffer became available
     */
-   synchronized void unpin(Buffer buff) {
-      buff.unpin();
-      if (!buff.isPinned())
-         numAvailable++;
+   boolean unpin(Buffer buff) {
+      synchronized (buff) {
+         buff.unpin();
+         if (buff.isPinned())
+            return false;
+         numAvailable.incrementAndGet();
+         policy.unpinned(buff);
+         return true;
+      }
+   }
+   
+   /**
+    * Reads a run of consecutive blocks of a file into
+    * unpinned buffers, using a single read.
+    * The buffers are left unpinned.
+    * None of the blocks may already be in the pool.
+    * If fewer buffers can be chosen than there are blocks,
+    * then only a prefix of the run is read;
+    * if a chosen buffer is pinned or one of the blocks is read into
+    * the pool by another thread in the meantime, then nothing is read.
+    * This method is called by the {@link BufferPrefetcher} thread.
+    * @param blks the consecutive blocks to be read
+    */
+   void loadRun(List<Block> blks) {
+      List<Buffer> victims = new ArrayList<Buffer>();
+      Set<Buffer> chosen = Collections.newSetFromMap(new IdentityHashMap<Buffer,Boolean>());
+      while (victims.size() < blks.size()) {
+         Buffer buff = chooseUnpinnedBuffer();
+         if (buff == null || !chosen.add(buff))
+            break;
+         victims.add(buff);
+      }
+      if (victims.isEmpty())
+         return;
+      Buffer[] run = victims.toArray(new Buffer[0]);
+      Block[] runblks = blks.subList(0, run.length).toArray(new Block[0]);
+      loadLatched(runblks, run, latchOrder(run), 0);
    }
    
    /**
@@ -98,22 +308,205 @@ class BasicBufferMgr {
     * @return the number of available buffers
     */
    int available() {
-      return numAvailable;
+      return numAvailable.get();
+   }
+   
+   /**
+    * Returns true if a buffer is assigned to the specified block.
+    * @param blk a reference to a disk block
+    * @return true if the block is in the buffer pool
+    */
+   boolean contains(Block blk) {
+      return bufferMap.containsKey(blk);
    }
    
    private Buffer findExistingBuffer(Block blk) {
-      for (Buffer buff : bufferpool) {
-         Block b = buff.block();
-         if (b != null && b.equals(blk))
-            return buff;
-      }
-      return null;
+      return bufferMap.get(blk);
    }
    
    private Buffer chooseUnpinnedBuffer() {
-      for (Buffer buff : bufferpool)
+      if (numAvailable.get() == 0)
+         return null;
+      return policy.chooseUnpinnedBuffer();
+   }
+   
+   /**
+    * Flushes the specified buffers if they are still
+    * modified by the transaction.
+    * The buffers are sorted by block, and each run of
+    * consecutive blocks is written with a single call.
+    */
+   private void flushRuns(int txnum, Collection<Buffer> buffs) {
+      final Map<Buffer,Block> blks = new IdentityHashMap<Buffer,Block>();
+      for (Buffer buff : buffs) {
+         Block blk = buff.block();
+         if (blk != null)
+            blks.put(buff, blk);
+      }
+      List<Buffer> sorted = new ArrayList<Buffer>(blks.keySet());
+      Collections.sort(sorted, new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            Block blk1 = blks.get(b1), blk2 = blks.get(b2);
+            int cmp = blk1.fileName().compareTo(blk2.fileName());
+            if (cmp != 0)
+               return cmp;
+            return Integer.compare(blk1.number(), blk2.number());
+         }
+      });
+      int start = 0;
+      while (start < sorted.size()) {
+         Block first = blks.get(sorted.get(start));
+         int end = start + 1;
+         while (end < sorted.size() && end - start < MAX_RUN) {
+            Block blk = blks.get(sorted.get(end));
+            if (!blk.fileName().equals(first.fileName())
+                  || blk.number() != first.number() + (end - start))
+               break;
+            end++;
+         }
+         Buffer[] run = sorted.subList(start, end).toArray(new Buffer[0]);
+         Block[] runblks = new Block[run.length];
+         for (int i=0; i<run.length; i++)
+            runblks[i] = blks.get(run[i]);
+         writeLatched(txnum, runblks, run, latchOrder(run), 0);
+         start = end;
+      }
+   }
+   
+   /**
+    * Latches the buffers of a run one at a time, in pool order,
+    * and then writes the run.
+    * If a buffer has been flushed or reassigned since the run
+    * was formed, then the buffers of the run are flushed individually.
+    */
+   private void writeLatched(int txnum, Block[] blks, Buffer[] run, Buffer[] latchorder, int i) {
+      if (i < latchorder.length) {
+         synchronized (latchorder[i]) {
+            writeLatched(txnum, blks, run, latchorder, i+1);
+         }
+         return;
+      }
+      boolean intact = true;
+      long maxlsn = -1;
+      Page[] pages = new Page[run.length];
+      for (int j=0; j<run.length; j++) {
+         if (!blks[j].equals(run[j].block()) || !run[j].isModifiedBy(txnum))
+            intact = false;
+         maxlsn = Math.max(maxlsn, run[j].logSequenceNumber());
+         pages[j] = run[j].contents();
+      }
+      if (run.length == 1 || !intact) {
+         for (Buffer buff : run)
+            if (buff.isModifiedBy(txnum))
+               buff.flush();
+         return;
+      }
+      SimpleDB.logMgr().flush(maxlsn);
+      Page.writeRun(blks[0], pages);
+      for (Buffer buff : run)
+         buff.setClean();
+   }
+   
+   /**
+    * Latches the chosen buffers one at a time, in pool order,
+    * and then reads the run of blocks into them.
+    */
+   private void loadLatched(Block[] blks, Buffer[] run, Buffer[] latchorder, int i) {
+      if (i < latchorder.length) {
+         synchronized (latchorder[i]) {
+            loadLatched(blks, run, latchorder, i+1);
+         }
+         return;
+      }
+      for (Buffer buff : run)
+         if (buff.isPinned()) {
+            release(blks, run, 0);  // pinned by another thread since it was chosen
+            return;
+         }
+      for (int j=0; j<run.length; j++)
+         if (bufferMap.putIfAbsent(blks[j], run[j]) != null) {
+            release(blks, run, j);  // another thread is reading the block
+            return;
+         }
+      Page[] pages = new Page[run.length];
+      try {
+         for (int j=0; j<run.length; j++) {
+            run[j].flush();
+            pages[j] = run[j].contents();
+         }
+      }
+      catch (RuntimeException e) {
+         release(blks, run, run.length);
+         throw e;
+      }
+      for (Buffer buff : run) {
+         Block oldblk = buff.block();
+         if (oldblk != null)
+            bufferMap.remove(oldblk, buff);
+      }
+      try {
+         Page.readRun(blks[0], pages);
+      }
+      catch (RuntimeException e) {
+         // the buffers' previous contents may have been overwritten
+         for (Buffer buff : run)
+            buff.assignToReadBlock(null);
+         release(blks, run, run.length);
+         throw e;
+      }
+      for (int j=0; j<run.length; j++) {
+         run[j].assignToReadBlock(blks[j]);
+         policy.unpinned(run[j]);
+      }
+   }
+   
+   /**
+    * Undoes a partially completed load:
+    * the claimed blocks are removed from the map, and
+    * the chosen buffers that are still unpinned are returned to the policy.
+    */
+   private void release(Block[] blks, Buffer[] run, int claimed) {
+      for (int j=0; j<claimed; j++)
+         bufferMap.remove(blks[j], run[j]);
+      for (Buffer buff : run)
          if (!buff.isPinned())
-         return buff;
-      return null;
+            policy.unpinned(buff);
+   }
+   
+   /**
+    * Returns the specified buffers in the order
+    * in which they must be latched.
+    */
+   private Buffer[] latchOrder(Buffer[] run) {
+      Buffer[] result = run.clone();
+      Arrays.sort(result, new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            return frames.get(b1) - frames.get(b2);
+         }
+      });
+      return result;
+   }
+   
+   /**
+    * Pins the buffer, which must be latched by the caller.
+    */
+   private void pinBuffer(Buffer buff) {
+      if (!buff.isPinned())
+         numAvailable.decrementAndGet();
+      buff.pin();
+      policy.pinned(buff);
+   }
+   
+   private ReplacementPolicy createPolicy(String policyname) {
+      switch (policyname) {
+         case ReplacementPolicy.LRU:
+            return new LRUReplacementPolicy(bufferpool);
+         case ReplacementPolicy.CLOCK:
+            return new ClockReplacementPolicy(bufferpool);
+         case ReplacementPolicy.LRUK:
+            return new LRUKReplacementPolicy(bufferpool, 2);
+         default:
+            throw new RuntimeException("unknown replacement policy " + policyname);
+      }
    }
 }
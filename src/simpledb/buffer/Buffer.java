@@ -2,6 +2,7 @@ package simpledb.buffer;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.*;
 
 /**
  * An individual buffer.
@@ -9,16 +10,34 @@ import simpledb.file.*;
  * such as the disk block associated with the page,
  * the number of times the block has been pinned,
  * whether the contents of the page have been modified,
- * and if so, the id of the modifying transaction and
- * the LSN of the corresponding log record.
+ * and if so, the ids of the modifying transactions and
+ * the LSN of the most recent corresponding log record.
+ * A logged modification also sets the page LSN, which is
+ * written to disk with the page, so that recovery can tell
+ * which modifications the block on disk already holds.
+ * The buffer also keeps the LSN of the earliest log record
+ * whose modification it has not yet written to disk,
+ * which a checkpoint uses to determine where recovery must start redoing the log.
+ * The first time a transaction modifies a buffer,
+ * the buffer reports it to the buffer manager,
+ * which keeps a list of the buffers dirtied by each transaction.
+ * <p>
+ * The buffer's monitor serves as the latch for its frame.
+ * The methods that change the buffer's status are synchronized,
+ * whereas the methods {@link #block()}, {@link #isPinned()}
+ * and {@link #isModified()} read volatile fields, so that replacement policies can
+ * inspect a buffer without latching it.
  * @author Edward Sciore
  */
 public class Buffer {
    private Page contents = new Page();
-   private Block blk = null;
-   private int pins = 0;
-   private int modifiedBy = -1;  // negative means not modified
-   private int logSequenceNumber = -1; // negative means no corresponding log record
+   private volatile Block blk = null;
+   private volatile int pins = 0;
+   private Set<Integer> modifiedBy = new HashSet<Integer>(); // empty means not modified
+   private volatile boolean modified = false;
+   private long logSequenceNumber = -1; // negative means no corresponding log record
+   private long recoveryLSN = -1;       // negative means no unwritten logged modification
+   private BasicBufferMgr bufferMgr;
 
    /**
     * Creates a new buffer, wrapping a new 
@@ -33,8 +52,11 @@ public class Buffer {
     * Thus this constructor cannot be called until 
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
+    * @param bufferMgr the manager to notify of modifications
     */
-   public Buffer() {}
+   Buffer(BasicBufferMgr bufferMgr) {
+      this.bufferMgr = bufferMgr;
+   }
    
    /**
     * Returns the integer value at the specified offset of the
@@ -74,10 +96,8 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setInt(int offset, int val, int txnum, int lsn) {
-      modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
+   public synchronized void setInt(int offset, int val, int txnum, long lsn) {
+      setModified(txnum, lsn);
       contents.setInt(offset, val);
    }
 
@@ -95,13 +115,50 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setString(int offset, String val, int txnum, int lsn) {
-      modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
+   public synchronized void setString(int offset, String val, int txnum, long lsn) {
+      setModified(txnum, lsn);
       contents.setString(offset, val);
    }
 
+   /**
+    * Writes several integers and strings to the
+    * buffer's page, in the order of the map.
+    * This method assumes that the transaction has already
+    * written an appropriate log record, which covers
+    * all of the values.
+    * A negative lsn value indicates that a log record
+    * was not necessary.
+    * @param vals the new Integer or String values, keyed by their offset within the page
+    * @param txnum the id of the transaction performing the modification
+    * @param lsn the LSN of the corresponding log record
+    */
+   public synchronized void setValues(Map<Integer,Object> vals, int txnum, long lsn) {
+      setValues(vals, txnum, lsn, lsn);
+   }
+
+   /**
+    * Writes several integers and strings to the
+    * buffer's page, in the order of the map,
+    * where the values are covered by a sequence of log records.
+    * Recovery must redo the page from the first of the records,
+    * and the page is up to date with the last.
+    * Negative lsn values indicate that log records
+    * were not necessary.
+    * @param vals the new Integer or String values, keyed by their offset within the page
+    * @param txnum the id of the transaction performing the modification
+    * @param firstLSN the LSN of the first of the log records
+    * @param lsn the LSN of the last of the log records
+    */
+   public synchronized void setValues(Map<Integer,Object> vals, int txnum, long firstLSN, long lsn) {
+      setModified(txnum, firstLSN, lsn);
+      for (Map.Entry<Integer,Object> e : vals.entrySet()) {
+         if (e.getValue() instanceof String)
+            contents.setString(e.getKey(), (String)e.getValue());
+         else
+            contents.setInt(e.getKey(), (Integer)e.getValue());
+      }
+   }
+
    /**
     * Returns a reference to the disk block
     * that the buffer is pinned to.
@@ -118,25 +175,79 @@ public class Buffer {
     * record has been written to disk prior to writing
     * the page to disk.
     */
-   void flush() {
-      if (modifiedBy >= 0) {
+   synchronized void flush() {
+      if (modified) {
          SimpleDB.logMgr().flush(logSequenceNumber);
          contents.write(blk);
-         modifiedBy = -1;
+         setClean();
       }
    }
 
+   /**
+    * Marks the buffer as not modified.
+    * This method is called after the page has been written
+    * to disk, either by {@link #flush()} or as part of a
+    * run of buffers written by the buffer manager.
+    */
+   synchronized void setClean() {
+      modifiedBy.clear();
+      modified = false;
+      recoveryLSN = -1;
+   }
+
+   /**
+    * Returns the LSN of the most recent log record
+    * for a modification of this buffer.
+    * @return the buffer's LSN, or a negative value if there is none
+    */
+   synchronized long logSequenceNumber() {
+      return logSequenceNumber;
+   }
+
+   /**
+    * Returns the LSN saved in the buffer's page,
+    * which is the LSN of the most recent logged modification
+    * of the block, including the modifications that
+    * were written to disk before the block was read.
+    * @return the page LSN, or -1 if the database does not save page LSNs
+    * @see simpledb.file.Page#lsn()
+    */
+   public synchronized long pageLSN() {
+      return contents.lsn();
+   }
+
+   /**
+    * Returns the LSN of the earliest log record
+    * for a modification of this buffer
+    * that has not yet been written to disk.
+    * @return the buffer's recovery LSN, or a negative value if there is none
+    */
+   synchronized long recoveryLSN() {
+      return recoveryLSN;
+   }
+
+   /**
+    * Returns the page wrapped by this buffer.
+    * This method is called by the buffer manager
+    * when it reads or writes a run of buffers at once;
+    * the buffer must be latched by the caller.
+    * @return the buffer's page
+    */
+   Page contents() {
+      return contents;
+   }
+
    /**
     * Increases the buffer's pin count.
     */
-   void pin() {
+   synchronized void pin() {
       pins++;
    }
 
    /**
     * Decreases the buffer's pin count.
     */
-   void unpin() {
+   synchronized void unpin() {
       pins--;
    }
 
@@ -155,8 +266,18 @@ public class Buffer {
     * @param txnum the id of the transaction
     * @return true if the transaction modified the buffer
     */
-   boolean isModifiedBy(int txnum) {
-      return txnum == modifiedBy;
+   synchronized boolean isModifiedBy(int txnum) {
+      return modifiedBy.contains(txnum);
+   }
+
+   /**
+    * Returns true if the buffer is dirty.
+    * The value is read without latching the buffer,
+    * and so may be stale by the time it is used.
+    * @return true if the buffer has been modified
+    */
+   boolean isModified() {
+      return modified;
    }
 
    /**
@@ -166,13 +287,25 @@ public class Buffer {
     * of the previous page are first written to disk.
     * @param b a reference to the data block
     */
-   void assignToBlock(Block b) {
+   synchronized void assignToBlock(Block b) {
       flush();
       blk = b;
       contents.read(blk);
       pins = 0;
    }
 
+   /**
+    * Assigns the buffer to the specified block,
+    * whose contents have already been read into the
+    * buffer's page by the buffer manager.
+    * The buffer must not be dirty.
+    * @param b a reference to the data block
+    */
+   synchronized void assignToReadBlock(Block b) {
+      blk = b;
+      pins = 0;
+   }
+
    /**
     * Initializes the buffer's page according to the specified formatter,
     * and appends the page to the specified file.
@@ -181,10 +314,38 @@ public class Buffer {
     * @param filename the name of the file
     * @param fmtr a page formatter, used to initialize the page
     */
-   void assignToNew(String filename, PageFormatter fmtr) {
+   synchronized void assignToNew(String filename, PageFormatter fmtr) {
       flush();
       fmtr.format(contents);
+      contents.setLSN(0);  // the formatting is not logged
       blk = contents.append(filename);
       pins = 0;
    }
-}
\ No newline at end of file
+
+   /**
+    * Records that the specified transaction modified the buffer.
+    * The buffer manager is told the first time the
+    * transaction dirties the buffer since it was last flushed.
+    */
+   private void setModified(int txnum, long lsn) {
+      setModified(txnum, lsn, lsn);
+   }
+
+   /**
+    * Records that the specified transaction modified the buffer
+    * with the log records from firstLSN to lsn.
+    * The recovery LSN is set from the first record,
+    * and the page LSN from the last.
+    */
+   private void setModified(int txnum, long firstLSN, long lsn) {
+      if (modifiedBy.add(txnum))
+         bufferMgr.modified(txnum, this);
+      modified = true;
+      if (lsn >= 0) {
+         logSequenceNumber = lsn;
+         contents.setLSN(lsn);
+         if (recoveryLSN < 0)
+            recoveryLSN = firstLSN;
+      }
+   }
+}
@@ -0,0 +1,62 @@
+package simpledb.buffer;
+
+/**
+ * A daemon thread that periodically writes dirty, unpinned
+ * buffers to disk, so that the buffers chosen for replacement
+ * are usually clean and a pin does not have to wait for a write.
+ * Each write obeys the write-ahead logging rule, because
+ * {@link Buffer#flush()} forces the buffer's log records first.
+ * The flusher is stopped by {@link #shutdown()}; it is not interrupted,
+ * because an interrupt would close the channel of a file it is writing.
+ */
+class BufferFlusher extends Thread {
+   private BasicBufferMgr bufferMgr;
+   private long interval;
+   private Object lock = new Object();
+   private boolean stopped = false;  // guarded by lock
+   
+   /**
+    * Creates a flusher for the specified buffer manager.
+    * @param bufferMgr the buffer manager whose buffers are flushed
+    * @param interval the number of milliseconds between passes
+    */
+   BufferFlusher(BasicBufferMgr bufferMgr, long interval) {
+      super("buffer flusher");
+      this.bufferMgr = bufferMgr;
+      this.interval = interval;
+      setDaemon(true);
+   }
+   
+   /**
+    * Stops the flusher, and waits for it to finish its current pass.
+    */
+   void shutdown() {
+      synchronized (lock) {
+         stopped = true;
+         lock.notifyAll();
+      }
+      try {
+         join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+   
+   public void run() {
+      try {
+         while (true) {
+            synchronized (lock) {
+               if (!stopped)
+                  lock.wait(interval);
+               if (stopped)
+                  return;
+            }
+            bufferMgr.flushUnpinned();
+         }
+      }
+      catch (InterruptedException e) {
+         // the flusher was stopped
+      }
+   }
+}
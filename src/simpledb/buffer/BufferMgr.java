@@ -1,6 +1,8 @@
 package simpledb.buffer;
 
 import simpledb.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The publicly-accessible buffer manager.
@@ -11,8 +13,8 @@ import simpledb.file.*;
  * will never return null.
  * If no buffers are currently available, then the
  * calling thread will be placed on a waiting list.
- * The waiting threads are removed from the list when 
- * a buffer becomes available.
+ * Each time a buffer becomes available, only the thread
+ * at the head of the list is woken up.
  * If a thread has been waiting for a buffer for an
  * excessive amount of time (currently, 10 seconds)
  * then a {@link BufferAbortException} is thrown.
@@ -20,7 +22,11 @@ import simpledb.file.*;
  */
 public class BufferMgr {
    private static final long MAX_TIME = 10000; // 10 seconds
+   private static final int PREFETCH_FRACTION = 4; // a prefetch uses at most 1/4 of the available buffers
    private BasicBufferMgr bufferMgr;
+   private BufferFlusher flusher;
+   private BufferPrefetcher prefetcher;
+   private Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
    
    /**
     * Creates a new buffer manager having the specified 
@@ -36,7 +42,72 @@ public class BufferMgr {
     * @param numbuffers the number of buffer slots to allocate
     */
    public BufferMgr(int numbuffers) {
-      bufferMgr = new BasicBufferMgr(numbuffers);
+      this(numbuffers, ReplacementPolicy.LRU);
+   }
+   
+   /**
+    * Creates a new buffer manager having the specified 
+    * number of buffers and the specified replacement policy.
+    * @param numbuffers the number of buffer slots to allocate
+    * @param policyname the name of a {@link ReplacementPolicy}
+    */
+   public BufferMgr(int numbuffers, String policyname) {
+      bufferMgr = new BasicBufferMgr(numbuffers, policyname);
+   }
+   
+   /**
+    * Starts a background thread that writes dirty unpinned
+    * buffers to disk every few milliseconds.
+    * The method does nothing if the thread is already running.
+    * @param interval the number of milliseconds between passes
+    */
+   public synchronized void startFlusher(long interval) {
+      if (flusher == null) {
+         flusher = new BufferFlusher(bufferMgr, interval);
+         flusher.start();
+      }
+   }
+   
+   /**
+    * Starts a background thread that reads
+    * the blocks requested by {@link #prefetch(Block)}.
+    * The method does nothing if the thread is already running.
+    */
+   public synchronized void startPrefetcher() {
+      if (prefetcher == null) {
+         prefetcher = new BufferPrefetcher(this);
+         prefetcher.start();
+      }
+   }
+   
+   /**
+    * Stops the background threads of the buffer manager
+    * and waits for them to finish, and then writes
+    * the dirty buffers that are not pinned.
+    * This method is called by {@link simpledb.server.SimpleDB#shutdown()}.
+    */
+   public synchronized void shutdown() {
+      if (flusher != null) {
+         flusher.shutdown();
+         flusher = null;
+      }
+      if (prefetcher != null) {
+         prefetcher.shutdown();
+         prefetcher = null;
+      }
+      bufferMgr.flushUnpinned();
+   }
+   
+   /**
+    * Asks for the specified block to be read into the buffer pool
+    * in the background, because it is likely to be pinned soon.
+    * The block is not pinned.
+    * The request is ignored if the prefetcher is not running.
+    * @param blk a reference to a disk block
+    */
+   public void prefetch(Block blk) {
+      if (prefetcher != null)
+         prefetcher.request(blk);
    }
    
    /**
@@ -47,12 +118,17 @@ public class BufferMgr {
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(Block blk) {
+   public Buffer pin(Block blk) {
+      Buffer buff = bufferMgr.pin(blk);
+      if (buff != null)
+         return buff;
+      Waiter w = new Waiter();
       try {
          long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pin(blk);
+         waiters.add(w);
+         buff = bufferMgr.pin(blk);
          while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
+            w.await(MAX_TIME);
             buff = bufferMgr.pin(blk);
          }
          if (buff == null)
@@ -62,6 +138,9 @@ public class BufferMgr {
       catch(InterruptedException e) {
          throw new BufferAbortException();
       }
+      finally {
+         leave(w);
+      }
    }
    
    /**
@@ -73,12 +152,17 @@ public class BufferMgr {
     * @param fmtr the formatter used to initialize the page
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+   public Buffer pinNew(String filename, PageFormatter fmtr) {
+      Buffer buff = bufferMgr.pinNew(filename, fmtr);
+      if (buff != null)
+         return buff;
+      Waiter w = new Waiter();
       try {
          long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pinNew(filename, fmtr);
+         waiters.add(w);
+         buff = bufferMgr.pinNew(filename, fmtr);
          while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
+            w.await(MAX_TIME);
             buff = bufferMgr.pinNew(filename, fmtr);
          }
          if (buff == null)
@@ -88,18 +172,20 @@ public class BufferMgr {
       catch(InterruptedException e) {
          throw new BufferAbortException();
       }
+      finally {
+         leave(w);
+      }
    }
    
    /**
     * Unpins the specified buffer. 
     * If the buffer's pin count becomes 0,
-    * then the threads on the wait list are notified.
+    * then the first thread on the wait list is notified.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
-      bufferMgr.unpin(buff);
-      if (!buff.isPinned())
-         notifyAll();
+   public void unpin(Buffer buff) {
+      if (bufferMgr.unpin(buff))
+         signalNext();
    }
    
    /**
@@ -110,6 +196,43 @@ public class BufferMgr {
       bufferMgr.flushAll(txnum);
    }
    
+   /**
+    * Flushes the dirty buffers of the specified file
+    * that were modified by the specified transaction.
+    * Consecutive blocks are written with a single call,
+    * and the buffers can later be replaced without being written.
+    * @param txnum the transaction's id number
+    * @param filename the name of the file
+    */
+   public void flushFile(int txnum, String filename) {
+      bufferMgr.flushFile(txnum, filename);
+   }
+   
+   /**
+    * Forgets the buffers modified by the specified transaction,
+    * which has committed or rolled back without flushing them.
+    * The buffers are written to disk later,
+    * when they are replaced or flushed in the background.
+    * @param txnum the transaction's id number
+    */
+   public void forget(int txnum) {
+      bufferMgr.forget(txnum);
+   }
+   
+   /**
+    * Returns the LSN from which recovery would need to redo the log,
+    * were the system to crash now:
+    * the LSN of the earliest logged modification
+    * that has not been written to disk.
+    * If every logged modification has been written,
+    * the specified bound is returned.
+    * @param bound the LSN to return if no buffer has an unwritten modification
+    * @return the LSN from which the log must be redone
+    */
+   public long recoveryLSN(long bound) {
+      return bufferMgr.recoveryLSN(bound);
+   }
+   
    /**
     * Returns the number of available (ie unpinned) buffers.
     * @return the number of available buffers
@@ -118,7 +241,85 @@ public class BufferMgr {
       return bufferMgr.available();
    }
    
+   /**
+    * Reads the specified blocks into unpinned buffers,
+    * skipping those that are already in the pool.
+    * The blocks must be consecutive blocks of a file;
+    * each run of blocks not in the pool is read with a single call.
+    * This method is called by the {@link BufferPrefetcher} thread.
+    * It never waits for a buffer, and it uses at most
+    * a quarter of the available buffers, so that a prefetch
+    * cannot evict the pages that transactions are still using,
+    * or keep a transaction from getting a buffer.
+    * Thus nothing is read ahead when fewer than 4 buffers are available.
+    * @param blks the consecutive blocks to be read
+    */
+   void load(List<Block> blks) {
+      int budget = bufferMgr.available() / PREFETCH_FRACTION;
+      int start = 0;
+      while (start < blks.size()) {
+         if (bufferMgr.contains(blks.get(start))) {
+            start++;
+            continue;
+         }
+         int end = start + 1;
+         while (end < blks.size() && !bufferMgr.contains(blks.get(end)))
+            end++;
+         int n = Math.min(end - start, budget);
+         if (n <= 0)
+            return;
+         bufferMgr.loadRun(blks.subList(start, start + n));
+         budget -= n;
+         start = end;
+      }
+   }
+   
+   /**
+    * Removes the waiter from the wait list.
+    * If buffers are still available (because the waiter
+    * was woken up but did not use the buffer, or because
+    * several buffers were freed at once),
+    * then the next waiter is woken up in its place.
+    */
+   private void leave(Waiter w) {
+      waiters.remove(w);
+      if (bufferMgr.available() > 0)
+         signalNext();
+   }
+   
+   private void signalNext() {
+      Waiter w = waiters.poll();
+      if (w != null)
+         w.signal();
+   }
+   
    private boolean waitingTooLong(long starttime) {
       return System.currentTimeMillis() - starttime > MAX_TIME;
    }
+   
+   /**
+    * A thread waiting for a buffer.
+    * Each waiter has its own monitor, so that freeing a
+    * buffer wakes up exactly one thread.
+    * A waiter that is signalled is removed from the wait list;
+    * if it still cannot get a buffer, it puts itself back
+    * at the end of the list.
+    */
+   private class Waiter {
+      private boolean signalled = false;
+      
+      synchronized void await(long maxtime) throws InterruptedException {
+         if (!signalled)
+            wait(maxtime);
+         if (signalled) {
+            signalled = false;
+            waiters.add(this);
+         }
+      }
+      
+      synchronized void signal() {
+         signalled = true;
+         notify();
+      }
+   }
 }
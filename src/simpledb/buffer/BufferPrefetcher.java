@@ -0,0 +1,105 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A daemon thread that reads blocks into the buffer pool
+ * ahead of the scans that will use them.
+ * Requests are placed on a bounded queue and are dropped
+ * if the queue is full; a prefetch is only a hint.
+ * The prefetcher is stopped by {@link #shutdown()}, which
+ * wakes it with a special request instead of interrupting it,
+ * because an interrupt would close the channel of a file it is reading.
+ */
+class BufferPrefetcher extends Thread {
+   private static final int MAX_REQUESTS = 256;
+   private static final Block STOP = new Block("", -1);  // the request that wakes a stopped prefetcher
+   private BufferMgr bufferMgr;
+   private BlockingQueue<Block> requests = new LinkedBlockingQueue<Block>(MAX_REQUESTS);
+   private Set<Block> pending = Collections.newSetFromMap(new ConcurrentHashMap<Block,Boolean>());
+   private volatile boolean stopped = false;
+   
+   /**
+    * Creates a prefetcher for the specified buffer manager.
+    * @param bufferMgr the buffer manager that reads the blocks
+    */
+   BufferPrefetcher(BufferMgr bufferMgr) {
+      super("buffer prefetcher");
+      this.bufferMgr = bufferMgr;
+      setDaemon(true);
+   }
+   
+   /**
+    * Asks for the specified block to be read into the buffer pool.
+    * The request is ignored if the block has already been requested,
+    * or if too many requests are outstanding.
+    * @param blk a reference to a disk block
+    */
+   void request(Block blk) {
+      if (stopped)
+         return;
+      if (pending.add(blk) && !requests.offer(blk))
+         pending.remove(blk);
+   }
+   
+   /**
+    * Stops the prefetcher, discarding its outstanding requests,
+    * and waits for it to finish the run it is reading.
+    */
+   void shutdown() {
+      stopped = true;
+      while (!requests.offer(STOP))
+         requests.poll();
+      try {
+         join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+   
+   public void run() {
+      try {
+         while (true) {
+            List<Block> run = nextRun();
+            if (run == null)
+               return;
+            try {
+               bufferMgr.load(run);
+            }
+            catch (RuntimeException e) {
+               // the blocks could not be read; the scan will find out
+            }
+            pending.removeAll(run);
+         }
+      }
+      catch (InterruptedException e) {
+         // the prefetcher was stopped
+      }
+   }
+   
+   /**
+    * Waits for a request, and then removes from the queue
+    * the requests for the blocks that immediately follow it,
+    * so that the whole run can be read at once.
+    * @return the run of blocks, or null if the prefetcher has been stopped
+    */
+   private List<Block> nextRun() throws InterruptedException {
+      List<Block> run = new ArrayList<Block>();
+      Block blk = requests.take();
+      if (stopped)
+         return null;
+      run.add(blk);
+      Block next = requests.peek();
+      while (next != null && run.size() < BasicBufferMgr.MAX_RUN
+             && next.fileName().equals(blk.fileName())
+             && next.number() == blk.number() + 1) {
+         blk = requests.poll();
+         run.add(blk);
+         next = requests.peek();
+      }
+      return run;
+   }
+}
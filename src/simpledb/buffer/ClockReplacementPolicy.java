@@ -0,0 +1,69 @@
+package simpledb.buffer;
+
+import java.util.*;
+
+/**
+ * The clock (second-chance) replacement policy.
+ * Each buffer has a reference bit that is set whenever
+ * the buffer is pinned.
+ * To choose a victim, a clock hand sweeps the buffer pool,
+ * clearing the reference bits of the unpinned buffers it passes;
+ * the first unpinned buffer whose bit is already clear is chosen.
+ * A chosen buffer is not a candidate again until it is unpinned.
+ */
+class ClockReplacementPolicy implements ReplacementPolicy {
+   private Buffer[] bufferpool;
+   private boolean[] referenced;
+   private boolean[] candidate;
+   private Map<Buffer,Integer> frames = new IdentityHashMap<Buffer,Integer>();
+   private int hand = 0;
+   
+   /**
+    * Creates a clock policy for the specified buffer pool.
+    * @param bufferpool the buffers managed by the policy
+    */
+   ClockReplacementPolicy(Buffer[] bufferpool) {
+      this.bufferpool = bufferpool;
+      referenced = new boolean[bufferpool.length];
+      candidate = new boolean[bufferpool.length];
+      for (int i=0; i<bufferpool.length; i++) {
+         frames.put(bufferpool[i], i);
+         candidate[i] = true;
+      }
+   }
+   
+   /**
+    * Sets the buffer's reference bit.
+    * The bit is written without synchronization;
+    * a lost update merely gives the buffer one less chance.
+    */
+   public void pinned(Buffer buff) {
+      referenced[frames.get(buff)] = true;
+   }
+   
+   public synchronized void unpinned(Buffer buff) {
+      candidate[frames.get(buff)] = true;
+   }
+   
+   /**
+    * Sweeps the clock hand at most twice around the pool,
+    * which is enough to clear every reference bit.
+    * The chosen buffer stops being a candidate,
+    * so that no other thread can choose it before it is pinned.
+    */
+   public synchronized Buffer chooseUnpinnedBuffer() {
+      for (int i=0; i<2*bufferpool.length; i++) {
+         Buffer buff = bufferpool[hand];
+         int frame = hand;
+         hand = (hand + 1) % bufferpool.length;
+         if (!candidate[frame] || buff.isPinned())
+            continue;
+         if (!referenced[frame]) {
+            candidate[frame] = false;
+            return buff;
+         }
+         referenced[frame] = false;
+      }
+      return null;
+   }
+}
@@ -0,0 +1,107 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The LRU-K replacement policy.
+ * The policy remembers the times of the last K pins of each block,
+ * and chooses the unpinned buffer whose K-th most recent pin
+ * is the oldest.
+ * Blocks pinned fewer than K times are chosen first
+ * (in LRU order), so a single sequential scan cannot evict
+ * frequently-used pages such as those of the catalog tables.
+ * The history of a block is retained for a while after its buffer
+ * is replaced, so that a block that is re-read soon after eviction
+ * keeps its priority.
+ */
+class LRUKReplacementPolicy implements ReplacementPolicy {
+   private int k;
+   private long clock = 0;
+   private Map<Block,long[]> history;
+   private Map<Buffer,Key> unpinnedKeys = new HashMap<Buffer,Key>();
+   private TreeMap<Key,Buffer> candidates = new TreeMap<Key,Buffer>();
+   
+   /**
+    * Creates an LRU-K policy for the specified buffer pool,
+    * all of whose buffers are initially unpinned.
+    * The history of at most twice as many blocks
+    * as there are buffers is retained.
+    * @param bufferpool the buffers managed by the policy
+    * @param k the number of pins remembered for each block
+    */
+   LRUKReplacementPolicy(Buffer[] bufferpool, int k) {
+      this.k = k;
+      final int maxHistory = 2 * bufferpool.length;
+      history = new LinkedHashMap<Block,long[]>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+         protected boolean removeEldestEntry(Map.Entry<Block,long[]> e) {
+            return size() > maxHistory;
+         }
+      };
+      for (Buffer buff : bufferpool)
+         unpinned(buff);
+   }
+   
+   public synchronized void pinned(Buffer buff) {
+      Key key = unpinnedKeys.remove(buff);
+      if (key != null)
+         candidates.remove(key);
+      long[] times = history.get(buff.block());
+      if (times == null) {
+         times = new long[k];
+         history.put(buff.block(), times);
+      }
+      System.arraycopy(times, 0, times, 1, k-1);
+      times[0] = ++clock;
+   }
+   
+   /**
+    * Makes the buffer a candidate, keyed by the pin history of its block.
+    * A buffer that is already a candidate is re-keyed,
+    * as happens when the buffer manager loads a new block into it;
+    * its old key is removed, so that a buffer is never a candidate twice.
+    */
+   public synchronized void unpinned(Buffer buff) {
+      long[] times = (buff.block() == null) ? null : history.get(buff.block());
+      Key key = (times == null) ? new Key(0, 0, ++clock)
+                                : new Key(times[k-1], times[0], ++clock);
+      Key oldkey = unpinnedKeys.put(buff, key);
+      if (oldkey != null)
+         candidates.remove(oldkey);
+      candidates.put(key, buff);
+   }
+   
+   public synchronized Buffer chooseUnpinnedBuffer() {
+      Map.Entry<Key,Buffer> e = candidates.pollFirstEntry();
+      if (e == null)
+         return null;
+      unpinnedKeys.remove(e.getValue());
+      return e.getValue();
+   }
+   
+   /**
+    * The replacement priority of an unpinned buffer.
+    * Buffers are ordered by the time of the K-th most recent pin
+    * of their block (0 if there were fewer than K pins),
+    * then by the time of the most recent pin.
+    * The sequence number makes each key unique.
+    */
+   private static class Key implements Comparable<Key> {
+      private long kth, last, seq;
+      
+      Key(long kth, long last, long seq) {
+         this.kth = kth;
+         this.last = last;
+         this.seq = seq;
+      }
+      
+      public int compareTo(Key other) {
+         if (kth != other.kth)
+            return (kth < other.kth) ? -1 : 1;
+         if (last != other.last)
+            return (last < other.last) ? -1 : 1;
+         return (seq < other.seq) ? -1 : (seq == other.seq ? 0 : 1);
+      }
+   }
+}
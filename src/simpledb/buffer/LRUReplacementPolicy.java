@@ -0,0 +1,40 @@
+package simpledb.buffer;
+
+import java.util.*;
+
+/**
+ * The least-recently-used replacement policy.
+ * The unpinned buffers are kept in the order in which
+ * they became unpinned; the buffer that has been unpinned
+ * the longest is chosen for replacement.
+ */
+class LRUReplacementPolicy implements ReplacementPolicy {
+   private Set<Buffer> unpinned = new LinkedHashSet<Buffer>();
+   
+   /**
+    * Creates an LRU policy for the specified buffer pool,
+    * all of whose buffers are initially unpinned.
+    * @param bufferpool the buffers managed by the policy
+    */
+   LRUReplacementPolicy(Buffer[] bufferpool) {
+      for (Buffer buff : bufferpool)
+         unpinned.add(buff);
+   }
+   
+   public synchronized void pinned(Buffer buff) {
+      unpinned.remove(buff);
+   }
+   
+   public synchronized void unpinned(Buffer buff) {
+      unpinned.add(buff);
+   }
+   
+   public synchronized Buffer chooseUnpinnedBuffer() {
+      Iterator<Buffer> iter = unpinned.iterator();
+      if (!iter.hasNext())
+         return null;
+      Buffer buff = iter.next();
+      iter.remove();
+      return buff;
+   }
+}
@@ -0,0 +1,49 @@
+package simpledb.buffer;
+
+/**
+ * The strategy used by the buffer manager to decide which
+ * unpinned buffer to replace when a block is not in the pool.
+ * The buffer manager notifies the policy each time a buffer
+ * is pinned or becomes unpinned, and asks it for a victim
+ * on each buffer miss.
+ * The available policies are selected by name in
+ * {@link simpledb.server.SimpleDB#BUFFER_POLICY}.
+ * <p>
+ * A policy is called concurrently by many threads, and so
+ * must do its own synchronization.
+ * The methods {@link #pinned(Buffer)} and {@link #unpinned(Buffer)}
+ * are called while the buffer is latched, so a policy
+ * must never latch a buffer itself.
+ */
+public interface ReplacementPolicy {
+   /**
+    * The names of the available policies.
+    */
+   static final String LRU = "lru", CLOCK = "clock", LRUK = "lruk";
+   
+   /**
+    * Called each time the specified buffer is pinned,
+    * whether or not it was already pinned.
+    * After this call the buffer is no longer a replacement candidate.
+    * @param buff the pinned buffer
+    */
+   void pinned(Buffer buff);
+   
+   /**
+    * Called when the pin count of the specified buffer drops to zero.
+    * After this call the buffer is a replacement candidate.
+    * The method may also be called for a buffer that is already a candidate,
+    * such as one whose block has just been loaded by a prefetch;
+    * the buffer must still be a candidate only once.
+    * @param buff the unpinned buffer
+    */
+   void unpinned(Buffer buff);
+   
+   /**
+    * Chooses an unpinned buffer to be replaced.
+    * The chosen buffer is no longer a replacement candidate.
+    * Returns null if every buffer is pinned.
+    * @return the buffer to replace, or null
+    */
+   Buffer chooseUnpinnedBuffer();
+}
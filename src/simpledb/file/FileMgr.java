@@ -1,10 +1,17 @@
 package simpledb.file;
 
-import static simpledb.file.Page.BLOCK_SIZE;
+import static simpledb.file.Page.DEFAULT_BLOCK_SIZE;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * The SimpleDB file manager.
@@ -19,12 +26,187 @@ import java.util.*;
  * Method {@link #isNew() isNew} is called during system initialization by {@link simpledb.server.SimpleDB#init}.
  * Method {@link #size(String) size} is called by the log manager and transaction manager to
  * determine the end of the file.
+ * <p>
+ * Files are not opened in synchronous mode, and so a write
+ * is not necessarily on disk when the method returns.
+ * Method {@link #force(String) force} forces a file to disk,
+ * and is called at the points where durability is required:
+ * when the log is flushed, and before a commit, rollback
+ * or checkpoint record is written.
+ * The file manager has no global lock; reads and writes of
+ * different blocks proceed in parallel, and only appends to
+ * the same file are serialized.
+ * <p>
+ * Optionally, the file manager can serve block reads from
+ * read-only memory-mapped regions of the files
+ * (see {@link #useMappedReads(boolean) useMappedReads}).
+ * A page read this way shares the mapped memory until it is
+ * modified, which saves a copy and a system call per read.
+ * The mapped regions rely on the operating system keeping
+ * mapped memory coherent with regular file writes.
+ * <p>
+ * The file manager keeps a record of every file it has used,
+ * but only a bounded number of them have an open channel
+ * (see {@link #setMaxOpenFiles(int) setMaxOpenFiles}).
+ * A channel is pinned while an operation uses it;
+ * when too many channels are open, the least recently used
+ * unpinned one is closed, and it is reopened the next time
+ * the file is accessed.
+ * Pinning an open channel only changes the file's pin count;
+ * the lock on the set of open channels is taken only
+ * to open or close a channel.
+ * This allows a database to have thousands of index bucket
+ * files without running out of file descriptors.
+ * <p>
+ * Files grow in extents of several blocks
+ * (see {@link #setExtentSize(int) setExtentSize}):
+ * when an append reaches the end of the space allocated
+ * to a file, the file is extended by a whole extent of zeroed blocks
+ * with a single write, so that a bulk insert does not
+ * extend the file once per block.
+ * The preallocated blocks are not part of the file's size.
+ * The size is saved in a header block at the start of the file,
+ * which is written when the file is forced, so that a reopened
+ * file ends at its last block in use and not at its last preallocated one.
+ * A database of the original layout has no header blocks;
+ * the size of its files is their length, and they are not preallocated.
+ * <p>
+ * A database can be created with page checksums.
+ * The last {@value #CHECKSUM_SIZE} bytes of each block then hold
+ * a checksum of the rest of the block, which is computed when the block is written
+ * and verified when it is read, so that a block that was
+ * only partly written before a crash (or was otherwise corrupted)
+ * is detected instead of being silently used.
+ * A block that was never written (all zeros, including
+ * its checksum) is accepted.
+ * The file manager counts the verifications and the
+ * time they take (see {@link #checksumsVerified()}).
+ * Because the checksum is inside the block, blocks stay aligned
+ * on block boundaries of the file, and a page has that many
+ * fewer usable bytes (see {@link Page#blockSize()}).
+ * <p>
+ * Each block also saves a page LSN: the LSN of the most recent
+ * logged modification of its page, which recovery compares
+ * with the LSN of a log record to tell whether the block on disk
+ * already holds the record's modification.
+ * The {@value #LSN_SIZE} bytes of the page LSN precede the checksum,
+ * and so are covered by it.
+ * Databases of the original layout have no page LSNs.
+ * <p>
+ * A database can also be created with compressed blocks,
+ * which suits tables whose fixed-length records are mostly
+ * the padding of their strings.
+ * Each block is still stored in a slot of the block size at a fixed
+ * position of its file, so that blocks are located and preallocated
+ * as before, but a block is compressed when it is written,
+ * and only the compressed bytes at the start of the slot are
+ * written and read back; the rest of the slot is ignored.
+ * The slot begins with the length of the compressed bytes;
+ * a block that does not compress is stored whole after the length.
+ * A slot that was never written (all zeros) holds a block of zeros.
+ * The page LSN and checksum are those of the uncompressed block,
+ * and so the checksum is verified after the block is decompressed.
+ * The last {@value #LENGTH_SIZE} bytes of the trailer are not stored;
+ * they make room for the length of the slot.
+ * Header blocks are not compressed, and compressed blocks
+ * are never read through mapped regions.
+ * <p>
+ * The block size of a database, and whether it uses checksums
+ * and compression, are chosen when the database is created,
+ * and are saved in the file {@value #PROPERTIES_FILE} of the database directory,
+ * together with the version of the layout of its files.
+ * A database without that file has the original layout of SimpleDB,
+ * in which a block is just the bytes of its page.
+ * Other components can save their own settings there
+ * (see {@link #setting(String)}).
  * @author Edward Sciore
  */
 public class FileMgr {
+   /**
+    * The name of the file that holds the settings of the database.
+    */
+   public static final String PROPERTIES_FILE = "simpledb.properties";
+   
+   /**
+    * The approximate size in bytes of a memory-mapped region.
+    */
+   private static final int REGION_SIZE = 16 * 1024 * 1024;
+   
+   /**
+    * The largest extent, in blocks.
+    */
+   public static final int MAX_EXTENT_SIZE = 64;
+   
+   /**
+    * The default limit on the number of files whose
+    * channels are open at the same time.
+    */
+   public static final int DEFAULT_MAX_OPEN_FILES = 256;
+   
+   /**
+    * The number of bytes of the checksum at the end of each block.
+    */
+   public static final int CHECKSUM_SIZE = Integer.SIZE / Byte.SIZE;
+   
+   /**
+    * The number of bytes of the page LSN near the end of each block.
+    */
+   public static final int LSN_SIZE = Long.SIZE / Byte.SIZE;
+   
+   /**
+    * The number of bytes of the length at the start of the slot
+    * of a compressed block.
+    */
+   public static final int LENGTH_SIZE = Integer.SIZE / Byte.SIZE;
+   
+   /**
+    * The length saved in the slot of a compressed block
+    * whose contents are stored uncompressed.
+    */
+   private static final int STORED = -1;
+   
+   /**
+    * The version of the file layout of a new database,
+    * in which a file has a header block and a block has a page LSN
+    * (and optionally a checksum).
+    */
+   private static final int FORMAT = 2;
+   
+   /**
+    * The version of the original file layout of SimpleDB,
+    * which is saved only if another setting of such a database is saved.
+    */
+   private static final int ORIGINAL_FORMAT = 1;
+   
    private File dbDirectory;
    private boolean isNew;
-   private Map<String,FileChannel> openFiles = new HashMap<String,FileChannel>();
+   private int blockSize;  // the bytes taken on disk by a block, including its trailer
+   private int trailerSize;  // the bytes at the end of a block that are not available to pages
+   private boolean checksums;
+   private boolean compression;
+   private int checksumPos;  // the offset of the checksum in a block
+   private int firstRead;  // the bytes first read from the slot of a compressed block
+   private boolean original;  // true if the database has the original layout
+   private int headerBlocks;  // the number of blocks before block 0 of a file
+   private Properties settings = new Properties();  // guarded by its own monitor
+   private AtomicLong verifications = new AtomicLong(0);
+   private AtomicLong verifyNanos = new AtomicLong(0);
+   private ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+      protected Deflater initialValue() {
+         return new Deflater(Deflater.BEST_SPEED);
+      }
+   };
+   private ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+      protected Inflater initialValue() {
+         return new Inflater();
+      }
+   };
+   private long regionSize;
+   private boolean mappedReads = false;
+   private int extentSize = 1;
+   private int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+   private ConcurrentMap<String,OpenFile> openFiles = new ConcurrentHashMap<String,OpenFile>();
+   private Set<OpenFile> openChannels = new HashSet<OpenFile>();  // its monitor guards opening and closing channels
 
    /**
     * Creates a file manager for the specified database.
@@ -33,12 +215,54 @@ public class FileMgr {
     * If the folder does not exist, then a folder containing
     * an empty database is created automatically.
     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
+    * The database uses the default block size if it is new.
     * @param dbname the name of the directory that holds the database
     */
    public FileMgr(String dbname) {
+      this(dbname, DEFAULT_BLOCK_SIZE);
+   }
+
+   /**
+    * Creates a file manager for the specified database.
+    * If the database is new, it is created with the specified
+    * block size; otherwise, the block size saved in the
+    * database directory is used and the argument is ignored.
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the number of bytes in a block of a new database
+    */
+   public FileMgr(String dbname, int blocksize) {
+      this(dbname, blocksize, false);
+   }
+
+   /**
+    * Creates a file manager for the specified database.
+    * If the database is new, it is created with the specified
+    * block size and checksum setting; otherwise, the settings
+    * saved in the database directory are used and the arguments are ignored.
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the number of bytes in a block of a new database
+    * @param checksums true if the blocks of a new database should have checksums
+    */
+   public FileMgr(String dbname, int blocksize, boolean checksums) {
+      this(dbname, blocksize, checksums, false);
+   }
+
+   /**
+    * Creates a file manager for the specified database.
+    * If the database is new, it is created with the specified
+    * block size, checksum and compression settings; otherwise, the settings
+    * saved in the database directory are used and the arguments are ignored.
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the number of bytes in a block of a new database
+    * @param checksums true if the blocks of a new database should have checksums
+    * @param compression true if the blocks of a new database should be compressed
+    */
+   public FileMgr(String dbname, int blocksize, boolean checksums, boolean compression) {
       String homedir = System.getProperty("user.home");
       dbDirectory = new File(homedir, dbname);
       isNew = !dbDirectory.exists();
+      if (isNew && blocksize <= 0)
+         throw new RuntimeException("bad block size " + blocksize);
 
       // create the directory if the database is new
       if (isNew && !dbDirectory.mkdir())
@@ -48,69 +272,431 @@ public class FileMgr {
       for (String filename : dbDirectory.list())
          if (filename.startsWith("temp"))
          new File(dbDirectory, filename).delete();
+
+      if (isNew) {
+         blockSize = blocksize;
+         this.checksums = checksums;
+         this.compression = compression;
+         saveSettings();
+      }
+      else
+         loadSettings();
+      headerBlocks = original ? 0 : 1;
+      trailerSize = original ? 0 : LSN_SIZE + (this.checksums ? CHECKSUM_SIZE : 0)
+                                            + (this.compression ? LENGTH_SIZE : 0);
+      checksumPos = blockSize - CHECKSUM_SIZE - (this.compression ? LENGTH_SIZE : 0);
+      firstRead = Math.max(2 * LENGTH_SIZE, blockSize / 2);
+      if (blockSize <= trailerSize)
+         throw new RuntimeException("bad block size " + blockSize);
+      Page.setBlockSize(blockSize - trailerSize);
+      regionSize = (long)blockSize * Math.max(1, REGION_SIZE / blockSize);
+   }
+
+   /**
+    * Specifies whether blocks should be read through
+    * memory-mapped regions of their files.
+    * The setting has no effect if the database is compressed.
+    * @param mappedReads true if reads should use mapped regions
+    */
+   public void useMappedReads(boolean mappedReads) {
+      this.mappedReads = mappedReads;
+   }
+
+   /**
+    * Specifies the number of blocks by which
+    * a file grows when a block is appended past the space
+    * allocated to it.
+    * A value of 1 disables preallocation,
+    * as does a database whose files have no header block.
+    * @param extentSize the number of blocks in an extent, at most {@value #MAX_EXTENT_SIZE}
+    */
+   public void setExtentSize(int extentSize) {
+      if (extentSize < 1 || extentSize > MAX_EXTENT_SIZE)
+         throw new RuntimeException("bad extent size " + extentSize);
+      this.extentSize = extentSize;
+   }
+
+   /**
+    * Specifies how many files can have open channels at once.
+    * The limit is soft: it is exceeded while more channels
+    * than that are in use.
+    * @param maxOpenFiles the maximum number of open channels
+    */
+   public void setMaxOpenFiles(int maxOpenFiles) {
+      if (maxOpenFiles < 1)
+         throw new RuntimeException("bad open file limit " + maxOpenFiles);
+      this.maxOpenFiles = maxOpenFiles;
    }
 
    /**
     * Reads the contents of a disk block into a bytebuffer.
+    * The bytebuffer must have room for {@link #blockSize()} bytes.
+    * If the database has checksums, the block's checksum is verified.
+    * A block past the end of the file reads as all zeros.
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void read(Block blk, ByteBuffer bb) {
+   void read(Block blk, ByteBuffer bb) {
       try {
-         bb.clear();
-         FileChannel fc = getFile(blk.fileName());
-         fc.read(bb, blk.number() * BLOCK_SIZE);
+         OpenFile f = getFile(blk.fileName());
+         FileChannel fc = pin(f);
+         try {
+            readSlot(fc, blk, bb);
+         }
+         finally {
+            unpin(f);
+         }
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
       }
    }
 
+   /**
+    * Returns a read-only bytebuffer that shares the contents
+    * of the specified disk block with the memory-mapped region of its file.
+    * Returns null if mapped reads are disabled, or
+    * if the block is past the end of the file.
+    * A region is mapped the first time one of its blocks is read,
+    * and is mapped again if the file has grown into it since then.
+    * @param blk a reference to a disk block
+    * @return the mapped contents of the block, or null
+    */
+   ByteBuffer mappedBlock(Block blk) {
+      if (!mappedReads || compression)
+         return null;
+      try {
+         OpenFile f = getFile(blk.fileName());
+         long pos = position(blk.number());
+         int regionnum = (int)(pos / regionSize);
+         long regionstart = regionnum * regionSize;
+         int offset = (int)(pos - regionstart);
+         MappedByteBuffer mbb = f.region(regionnum);
+         if (mbb == null || mbb.capacity() < offset + blockSize) {
+            long filesize = position(f.size());
+            if (pos + blockSize > filesize)
+               return null;
+            long len = Math.min(regionSize, filesize - regionstart);
+            FileChannel fc = pin(f);
+            try {
+               mbb = fc.map(FileChannel.MapMode.READ_ONLY, regionstart, len);
+            }
+            finally {
+               unpin(f);
+            }
+            f.setRegion(regionnum, mbb);
+         }
+         ByteBuffer bb = mbb.duplicate();
+         bb.position(offset);
+         bb.limit(offset + blockSize);
+         bb = bb.slice();
+         verify(blk, bb);
+         return bb;
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot map block " + blk);
+      }
+   }
+
    /**
     * Writes the contents of a bytebuffer into a disk block.
+    * The bytebuffer must have room for {@link #blockSize()} bytes.
+    * If the database has checksums, the checksum of the
+    * contents is stored at the end of the bytebuffer.
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void write(Block blk, ByteBuffer bb) {
+   void write(Block blk, ByteBuffer bb) {
       try {
-         bb.rewind();
-         FileChannel fc = getFile(blk.fileName());
-         fc.write(bb, blk.number() * BLOCK_SIZE);
+         OpenFile f = getFile(blk.fileName());
+         FileChannel fc = pin(f);
+         try {
+            writeBlock(f, fc, blk, bb);
+         }
+         finally {
+            unpin(f);
+         }
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
       }
    }
 
+   /**
+    * Reads the contents of a run of consecutive disk blocks
+    * into the specified bytebuffers, using a single scattering read.
+    * The first buffer receives the specified block,
+    * the second buffer the following block, and so on.
+    * The scattering read uses the channel's position, so
+    * vectored operations on the same file are serialized.
+    * The checksum of each block is verified.
+    * The blocks of a compressed database are read one at a time,
+    * since only the start of each slot is read.
+    * @param first a reference to the first disk block of the run
+    * @param bbs the bytebuffers, one per block
+    */
+   void read(Block first, ByteBuffer[] bbs) {
+      if (compression) {
+         for (int i=0; i<bbs.length; i++)
+            read(new Block(first.fileName(), first.number() + i), bbs[i]);
+         return;
+      }
+      try {
+         OpenFile f = getFile(first.fileName());
+         FileChannel fc = pin(f);
+         try {
+            synchronized (f) {
+               for (ByteBuffer bb : bbs)
+                  bb.clear();
+               fc.position(position(first.number()));
+               ByteBuffer last = bbs[bbs.length-1];
+               while (last.hasRemaining())
+                  if (fc.read(bbs) < 0) {
+                     // the run extends past the end of the file
+                     for (ByteBuffer bb : bbs)
+                        zeroRemaining(bb);
+                     break;
+                  }
+            }
+         }
+         finally {
+            unpin(f);
+         }
+         for (int i=0; i<bbs.length; i++)
+            verify(new Block(first.fileName(), first.number() + i), bbs[i]);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read blocks starting at " + first);
+      }
+   }
+
+   /**
+    * Writes the specified bytebuffers into a run of consecutive
+    * disk blocks, using a single gathering write.
+    * The first buffer is written to the specified block,
+    * the second buffer to the following block, and so on.
+    * The blocks of a compressed database are written one at a time,
+    * since only the start of each slot is written.
+    * @param first a reference to the first disk block of the run
+    * @param bbs the bytebuffers, one per block
+    */
+   void write(Block first, ByteBuffer[] bbs) {
+      if (compression) {
+         for (int i=0; i<bbs.length; i++)
+            write(new Block(first.fileName(), first.number() + i), bbs[i]);
+         return;
+      }
+      try {
+         OpenFile f = getFile(first.fileName());
+         FileChannel fc = pin(f);
+         try {
+            synchronized (f) {
+               for (ByteBuffer bb : bbs) {
+                  seal(bb);
+                  bb.rewind();
+               }
+               fc.position(position(first.number()));
+               ByteBuffer last = bbs[bbs.length-1];
+               while (last.hasRemaining())
+                  fc.write(bbs);
+               f.written();
+               f.extendTo(first.number() + bbs.length);
+            }
+         }
+         finally {
+            unpin(f);
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write blocks starting at " + first);
+      }
+   }
+
    /**
     * Appends the contents of a bytebuffer to the end
     * of the specified file.
+    * If the file has no preallocated space left,
+    * then it is first extended by an extent.
+    * Appends to the same file are serialized,
+    * so that each one gets a different block.
     * @param filename the name of the file
     * @param bb  the bytebuffer
     * @return a reference to the newly-created block.
     */
-   synchronized Block append(String filename, ByteBuffer bb) {
-      int newblknum = size(filename);
-      Block blk = new Block(filename, newblknum);
-      write(blk, bb);
-      return blk;
+   Block append(String filename, ByteBuffer bb) {
+      try {
+         OpenFile f = getFile(filename);
+         FileChannel fc = pin(f);
+         try {
+            synchronized (f) {
+               int newblknum = f.size();
+               if (newblknum >= f.capacity() && extentSize > 1 && headerBlocks > 0)
+                  preallocate(f, fc, newblknum + extentSize);
+               Block blk = new Block(filename, newblknum);
+               writeBlock(f, fc, blk, bb);
+               return blk;
+            }
+         }
+         finally {
+            unpin(f);
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot append to " + filename);
+      }
    }
 
    /**
     * Returns the number of blocks in the specified file.
+    * The value comes from the in-memory block count
+    * of the open file, and so requires no system call.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
-   public synchronized int size(String filename) {
+   public int size(String filename) {
       try {
-         FileChannel fc = getFile(filename);
-         return (int)(fc.size() / BLOCK_SIZE);
+         return getFile(filename).size();
       }
       catch (IOException e) {
          throw new RuntimeException("cannot access " + filename);
       }
    }
 
+   /**
+    * Forces the completed writes of the specified file to disk,
+    * together with its size.
+    * @param filename the name of the file
+    */
+   public void force(String filename) {
+      try {
+         force(getFile(filename));
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot force " + filename);
+      }
+   }
+
+   /**
+    * Forces the completed writes of every database file to disk.
+    * Temporary files are not forced, because they
+    * are not needed after a crash.
+    */
+   public void forceAll() {
+      for (Map.Entry<String,OpenFile> e : openFiles.entrySet()) {
+         if (e.getKey().startsWith("temp") || !e.getValue().needsForce())
+            continue;
+         try {
+            force(e.getValue());
+         }
+         catch (IOException ex) {
+            throw new RuntimeException("cannot force " + e.getKey());
+         }
+      }
+   }
+
+   /**
+    * Returns the names of the files of the database
+    * that begin with the specified prefix.
+    * @param prefix the beginning of the file names
+    * @return the names of the matching files
+    */
+   public List<String> files(String prefix) {
+      List<String> result = new ArrayList<String>();
+      for (String filename : dbDirectory.list())
+         if (filename.startsWith(prefix))
+            result.add(filename);
+      return result;
+   }
+
+   /**
+    * Deletes the specified file.
+    * The method waits until no other thread is using the file;
+    * the caller must ensure that the file is not used again.
+    * @param filename the name of the file
+    */
+   public void delete(String filename) {
+      try {
+         OpenFile f = openFiles.get(filename);
+         if (f != null) {
+            lockExclusive(f);
+            try {
+               closeChannel(f);
+               openFiles.remove(filename);
+            }
+            finally {
+               unlockExclusive(f);
+            }
+         }
+         new File(dbDirectory, filename).delete();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot delete " + filename);
+      }
+   }
+
+   /**
+    * Returns true if each block saves the LSN of its page,
+    * just past the bytes available to the page.
+    * @return true if the blocks have page LSNs
+    */
+   boolean pageLSNs() {
+      return !original;
+   }
+
+   /**
+    * Returns the number of bytes that a block takes on disk,
+    * which includes its page LSN and checksum.
+    * A bytebuffer passed to this class must have this capacity.
+    * @return the size of a block on disk
+    */
+   public int blockSize() {
+      return blockSize;
+   }
+
+   /**
+    * Returns the value of the specified setting of the database,
+    * as saved in the file {@value #PROPERTIES_FILE}.
+    * @param name the name of the setting
+    * @return the value of the setting, or null if it has not been saved
+    */
+   public String setting(String name) {
+      return settings.getProperty(name);
+   }
+
+   /**
+    * Saves the specified setting of the database
+    * in the file {@value #PROPERTIES_FILE}.
+    * If the database has the original layout, then its version
+    * is saved as well, so that the file does not make it
+    * look like a database of the new layout.
+    * @param name the name of the setting
+    * @param value the value of the setting
+    */
+   public void saveSetting(String name, String value) {
+      synchronized (settings) {
+         if (original)
+            settings.setProperty("format", Integer.toString(ORIGINAL_FORMAT));
+         settings.setProperty(name, value);
+         storeSettings();
+      }
+   }
+
+   /**
+    * Returns the number of block checksums that have been verified.
+    * @return the number of verifications
+    */
+   public long checksumsVerified() {
+      return verifications.get();
+   }
+
+   /**
+    * Returns the total time spent verifying block checksums.
+    * @return the verification time, in nanoseconds
+    */
+   public long checksumNanos() {
+      return verifyNanos.get();
+   }
+
    /**
     * Returns a boolean indicating whether the file manager
     * had to create a new database directory.
@@ -121,22 +707,505 @@ public class FileMgr {
    }
 
    /**
-    * Returns the file channel for the specified filename.
-    * The file channel is stored in a map keyed on the filename.
-    * If the file is not open, then it is opened and the file channel
-    * is added to the map.
+    * Returns the open file for the specified filename.
+    * The open files are stored in a map keyed on the filename.
+    * If the file is not in the map, then it is opened and
+    * added to the map.
+    * Opening is synchronized, so that a file is never opened twice.
+    * The size of the file is read from its header block.
+    * The returned object does not necessarily have an
+    * open channel; the channel is obtained by {@link #pin(OpenFile)}.
     * @param filename the specified filename
-    * @return the file channel associated with the open file.
+    * @return the open file
     * @throws IOException
     */
-   private FileChannel getFile(String filename) throws IOException {
-      FileChannel fc = openFiles.get(filename);
-      if (fc == null) {
-         File dbTable = new File(dbDirectory, filename);
-         RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-         fc = f.getChannel();
-         openFiles.put(filename, fc);
+   private OpenFile getFile(String filename) throws IOException {
+      OpenFile f = openFiles.get(filename);
+      if (f == null) {
+         synchronized (this) {
+            f = openFiles.get(filename);
+            if (f == null) {
+               f = new OpenFile(new File(dbDirectory, filename));
+               FileChannel fc = pin(f);
+               try {
+                  // the last slot of a compressed file may be only partly written
+                  int capacity = (int)Math.max(0, (fc.size() + blockSize - 1) / blockSize - headerBlocks);
+                  int size = (headerBlocks > 0) ? savedSize(fc, filename)
+                                                : (int)(fc.size() / blockSize);
+                  f.extendTo(size);
+                  f.allocated(capacity);
+                  f.sizeSaved(size);
+               }
+               finally {
+                  unpin(f);
+               }
+               openFiles.put(filename, f);
+            }
+         }
+      }
+      return f;
+   }
+
+   /**
+    * Pins the channel of the specified file, opening it if necessary,
+    * and returns it.
+    * A pinned channel is not closed until it is unpinned.
+    * If the channel is open and the file is not reserved,
+    * then the method takes no lock.
+    * Otherwise, if a thread has reserved the file for exclusive use,
+    * then the method waits until the reservation is released.
+    * If opening the channel brings the number of open channels
+    * above the limit, then the least recently used
+    * unpinned channel is closed.
+    * @param f the file
+    * @return the channel of the file
+    * @throws IOException
+    */
+   private FileChannel pin(OpenFile f) throws IOException {
+      if (f.pin()) {
+         FileChannel fc = f.channel();
+         if (fc != null && !f.isExclusive())
+            return fc;
+         unpin(f);
+      }
+      synchronized (openChannels) {
+         while (f.isExclusive())
+            waitForChannels();
+         f.pin();  // always succeeds, because channels are only closed while holding the lock
+         if (f.channel() == null) {
+            try {
+               f.open();
+               openChannels.add(f);
+               closeExcessChannels();
+            }
+            catch (IOException e) {
+               unpin(f);
+               throw e;
+            }
+         }
+         return f.channel();
+      }
+   }
+
+   /**
+    * Unpins the channel of the specified file.
+    * If the channel is no longer pinned and a thread is
+    * waiting for exclusive use of the file, that thread is notified.
+    * @param f the file
+    */
+   private void unpin(OpenFile f) {
+      if (f.unpin() == 0 && f.isExclusive()) {
+         synchronized (openChannels) {
+            openChannels.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Reserves the specified file for exclusive use,
+    * and waits until no other thread has its channel pinned.
+    * The calling thread must not have the channel pinned.
+    */
+   private void lockExclusive(OpenFile f) throws IOException {
+      synchronized (openChannels) {
+         while (f.isExclusive())
+            waitForChannels();
+         f.setExclusive(true);
+         while (f.isPinned())
+            waitForChannels();
+      }
+   }
+
+   /**
+    * Releases the exclusive use of the specified file.
+    */
+   private void unlockExclusive(OpenFile f) {
+      synchronized (openChannels) {
+         f.setExclusive(false);
+         openChannels.notifyAll();
+      }
+   }
+
+   /**
+    * Waits for a change in the pins or reservations of the files.
+    * The caller must hold the monitor of the set of open channels.
+    */
+   private void waitForChannels() throws IOException {
+      try {
+         openChannels.wait();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while waiting for a file");
+      }
+   }
+
+   /**
+    * Closes the channel of the specified file, if it is open.
+    * The caller must have exclusive use of the file.
+    */
+   private void closeChannel(OpenFile f) throws IOException {
+      synchronized (openChannels) {
+         if (!openChannels.contains(f))
+            return;
+         // a thread may have pinned the channel before seeing the reservation
+         while (!f.closeIfUnpinned())
+            waitForChannels();
+         openChannels.remove(f);
+      }
+   }
+
+   /**
+    * Closes the least recently used unpinned channels until
+    * the number of open channels is within the limit.
+    * If all channels are pinned, then the limit is exceeded
+    * until some of them are unpinned.
+    * The caller must hold the monitor of the set of open channels.
+    */
+   private void closeExcessChannels() throws IOException {
+      while (openChannels.size() > maxOpenFiles) {
+         OpenFile lru = null;
+         for (OpenFile f : openChannels)
+            if (!f.isPinned() && (lru == null || f.lastUsed() < lru.lastUsed()))
+               lru = f;
+         if (lru == null || !lru.closeIfUnpinned())
+            return;  // every channel is in use
+         openChannels.remove(lru);
+      }
+   }
+
+   /**
+    * Forces the completed writes of the specified file to disk.
+    * If the file has grown since its size was last saved,
+    * its header block is written first, so that the
+    * new size is forced with the blocks.
+    */
+   private void force(OpenFile f) throws IOException {
+      if (!f.needsForce())
+         return;
+      FileChannel fc = pin(f);
+      try {
+         saveSize(f, fc);
+         f.force();
+      }
+      finally {
+         unpin(f);
+      }
+   }
+
+   /**
+    * Reads a block from the specified channel
+    * into the bytebuffer, and verifies the checksum.
+    * A block past the end of the file reads as all zeros.
+    * The slot of a compressed block is read in at most two parts:
+    * the first part, which usually holds all of the compressed bytes,
+    * and then the rest of them if it does not.
+    */
+   private void readSlot(FileChannel fc, Block blk, ByteBuffer bb) throws IOException {
+      long pos = position(blk.number());
+      if (compression) {
+         ByteBuffer slot = ByteBuffer.allocate(blockSize);
+         slot.limit(firstRead);
+         readFully(fc, slot, pos);
+         int n = slot.getInt(0);
+         int len = (n == STORED) ? blockSize : LENGTH_SIZE + n;
+         if (n < STORED || len > blockSize)
+            throw new RuntimeException("cannot decompress block " + blk);
+         if (len > firstRead) {
+            slot.limit(len);
+            readFully(fc, slot, pos);
+         }
+         decompress(blk, slot, bb);
+      }
+      else {
+         bb.clear();
+         readFully(fc, bb, pos);
+      }
+      verify(blk, bb);
+   }
+
+   /**
+    * Reads the remaining bytes of the bytebuffer from the channel,
+    * starting at the specified position of the file
+    * plus the position of the bytebuffer.
+    * The bytes past the end of the file read as zeros.
+    */
+   private void readFully(FileChannel fc, ByteBuffer bb, long pos) throws IOException {
+      while (bb.hasRemaining())
+         if (fc.read(bb, pos + bb.position()) < 0) {
+            zeroRemaining(bb);
+            break;
+         }
+   }
+
+   /**
+    * Writes the contents of a bytebuffer into a block
+    * of the specified open file,
+    * updating the file's block count if the block
+    * is past the end of the file.
+    */
+   private void writeBlock(OpenFile f, FileChannel fc, Block blk, ByteBuffer bb) throws IOException {
+      seal(bb);
+      bb.rewind();
+      if (compression)
+         bb = compress(bb);
+      long pos = position(blk.number());
+      while (bb.hasRemaining())
+         fc.write(bb, pos + bb.position());
+      f.written();
+      if (blk.number() >= f.size())
+         f.extendTo(blk.number() + 1);
+   }
+
+   /**
+    * Extends the specified file with zeroed blocks,
+    * so that it physically holds the specified number of blocks.
+    * The caller must hold the file's monitor and have pinned its channel.
+    */
+   private void preallocate(OpenFile f, FileChannel fc, int newcapacity) throws IOException {
+      int oldcapacity = f.capacity();
+      ByteBuffer zeros = ByteBuffer.allocate((newcapacity - oldcapacity) * blockSize);
+      long pos = position(oldcapacity);
+      while (zeros.hasRemaining())
+         fc.write(zeros, pos + zeros.position());
+      f.allocated(newcapacity);
+   }
+
+   /**
+    * Returns the position in a file of the specified block,
+    * which follows the header blocks of the file.
+    */
+   private long position(int blknum) {
+      return (long)(blknum + headerBlocks) * blockSize;
+   }
+
+   /**
+    * Reads the size saved in the header block of a newly-opened file.
+    * A file whose header has not been written yet has no blocks.
+    */
+   private int savedSize(FileChannel fc, String filename) throws IOException {
+      ByteBuffer bb = ByteBuffer.allocate(blockSize);
+      while (bb.hasRemaining())
+         if (fc.read(bb, bb.position()) < 0) {
+            zeroRemaining(bb);
+            break;
+         }
+      verify(new Block(filename, -1), bb);
+      return bb.getInt(0);
+   }
+
+   /**
+    * Writes the size of the specified file to its header block,
+    * if it has changed since it was last saved.
+    * A file without a header block only records the size as saved.
+    * The caller must have pinned the file's channel.
+    */
+   private void saveSize(OpenFile f, FileChannel fc) throws IOException {
+      synchronized (f) {
+         int size = f.size();
+         if (size == f.savedSize())
+            return;
+         if (headerBlocks > 0) {
+            ByteBuffer bb = ByteBuffer.allocate(blockSize);
+            bb.putInt(0, size);
+            seal(bb);
+            bb.rewind();
+            while (bb.hasRemaining())
+               fc.write(bb, bb.position());
+            f.written();
+         }
+         f.sizeSaved(size);
+      }
+   }
+
+   /**
+    * Returns the slot of a compressed database that holds the block
+    * in the bytebuffer: the length of the compressed block,
+    * followed by its compressed bytes.
+    * If the block does not compress, the length is {@value #STORED},
+    * and is followed by the block itself.
+    * The bytes reserved for the length at the end of the block are not stored.
+    */
+   private ByteBuffer compress(ByteBuffer bb) {
+      byte[] block = new byte[blockSize - LENGTH_SIZE];
+      ByteBuffer src = bb.duplicate();
+      src.clear();
+      src.get(block);
+      byte[] out = new byte[block.length - LENGTH_SIZE];
+      Deflater deflater = deflaters.get();
+      deflater.reset();
+      deflater.setInput(block);
+      deflater.finish();
+      int n = deflater.deflate(out);
+      ByteBuffer slot;
+      if (deflater.finished()) {
+         slot = ByteBuffer.allocate(LENGTH_SIZE + n);
+         slot.putInt(n);
+         slot.put(out, 0, n);
+      }
+      else {
+         slot = ByteBuffer.allocate(blockSize);
+         slot.putInt(STORED);
+         slot.put(block);
+      }
+      slot.flip();
+      return slot;
+   }
+
+   /**
+    * Decompresses the slot of a compressed block into the bytebuffer.
+    * A slot whose length is 0 has never been written,
+    * and holds a block of zeros.
+    * @throws RuntimeException if the compressed bytes are corrupted
+    */
+   private void decompress(Block blk, ByteBuffer slot, ByteBuffer bb) {
+      int n = slot.getInt(0);
+      bb.clear();
+      if (n == STORED) {
+         ByteBuffer src = slot.duplicate();
+         src.position(LENGTH_SIZE);
+         src.limit(blockSize);
+         bb.put(src);
+      }
+      else if (n > 0) {
+         byte[] block = new byte[blockSize - LENGTH_SIZE];
+         Inflater inflater = inflaters.get();
+         inflater.reset();
+         inflater.setInput(slot.array(), LENGTH_SIZE, n);
+         try {
+            if (inflater.inflate(block) != block.length || !inflater.finished())
+               throw new RuntimeException("cannot decompress block " + blk);
+         }
+         catch (DataFormatException e) {
+            throw new RuntimeException("cannot decompress block " + blk);
+         }
+         bb.put(block);
+      }
+      zeroRemaining(bb);
+   }
+
+   /**
+    * Stores the checksum of the rest of the block
+    * at the end of the bytebuffer, if the database has checksums.
+    * A read-only bytebuffer is shared with a mapped file region,
+    * and so already holds the checksum of its contents.
+    */
+   private void seal(ByteBuffer bb) {
+      if (checksums && !bb.isReadOnly())
+         bb.putInt(checksumPos, checksum(bb));
+   }
+
+   /**
+    * Verifies the checksum at the end of the bytebuffer,
+    * if the database has checksums.
+    * A block that is all zeros, including its checksum,
+    * has never been written, and is accepted.
+    * @throws RuntimeException if the checksum does not match
+    */
+   private void verify(Block blk, ByteBuffer bb) {
+      if (!checksums)
+         return;
+      long start = System.nanoTime();
+      int stored = bb.getInt(checksumPos);
+      boolean ok = (stored == checksum(bb)) || (stored == 0 && isZero(bb, blockSize));
+      verifications.incrementAndGet();
+      verifyNanos.addAndGet(System.nanoTime() - start);
+      if (!ok)
+         throw new RuntimeException("checksum mismatch in block " + blk);
+   }
+
+   /**
+    * Returns the checksum of the block in the bytebuffer,
+    * excluding the checksum itself.
+    */
+   private int checksum(ByteBuffer bb) {
+      ByteBuffer contents = bb.duplicate();
+      contents.clear();
+      contents.limit(checksumPos);
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      return (int) crc.getValue();
+   }
+
+   private boolean isZero(ByteBuffer bb, int len) {
+      for (int i=0; i<len; i++)
+         if (bb.get(i) != 0)
+            return false;
+      return true;
+   }
+
+   private void zeroRemaining(ByteBuffer bb) {
+      while (bb.hasRemaining())
+         bb.put((byte)0);
+   }
+
+   /**
+    * Writes the block size, checksum and compression settings
+    * and the file layout version
+    * to the properties file of a newly-created database.
+    */
+   private void saveSettings() {
+      settings.setProperty("blocksize", Integer.toString(blockSize));
+      settings.setProperty("checksums", Boolean.toString(checksums));
+      settings.setProperty("compression", Boolean.toString(compression));
+      settings.setProperty("format", Integer.toString(FORMAT));
+      storeSettings();
+   }
+
+   /**
+    * Writes the settings to the properties file.
+    */
+   private void storeSettings() {
+      try {
+         OutputStream out = new FileOutputStream(new File(dbDirectory, PROPERTIES_FILE));
+         try {
+            settings.store(out, "SimpleDB database settings");
+         }
+         finally {
+            out.close();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + PROPERTIES_FILE);
+      }
+   }
+
+   /**
+    * Reads the block size, checksum and compression settings
+    * and the file layout version from the properties file.
+    * A database without a properties file, or whose properties file
+    * saves the original version, has the original layout,
+    * and so has the default block size, no checksums and no compression.
+    * @throws RuntimeException if the layout is not supported
+    */
+   private void loadSettings() {
+      File f = new File(dbDirectory, PROPERTIES_FILE);
+      if (f.exists()) {
+         try {
+            InputStream in = new FileInputStream(f);
+            try {
+               settings.load(in);
+            }
+            finally {
+               in.close();
+            }
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot read " + PROPERTIES_FILE);
+         }
+      }
+      String format = settings.getProperty("format", Integer.toString(ORIGINAL_FORMAT));
+      original = format.equals(Integer.toString(ORIGINAL_FORMAT));
+      if (original) {
+         blockSize = DEFAULT_BLOCK_SIZE;
+         checksums = false;
+      }
+      else if (format.equals(Integer.toString(FORMAT))) {
+         blockSize = Integer.parseInt(settings.getProperty("blocksize"));
+         checksums = Boolean.parseBoolean(settings.getProperty("checksums"));
+         compression = Boolean.parseBoolean(settings.getProperty("compression"));
       }
-      return fc;
+      else
+         throw new RuntimeException("cannot open a database of file layout version " + format);
    }
 }
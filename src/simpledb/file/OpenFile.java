@@ -0,0 +1,276 @@
+package simpledb.file;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An open database file, as managed by the {@link FileMgr}.
+ * The object holds the file's channel and its number of blocks,
+ * and keeps track of whether the file has been written since
+ * it was last forced to disk.
+ * The block count is read from the file's header when the file
+ * is opened, and from then on is maintained in memory,
+ * so that asking for the size of a file is not a system call;
+ * the object also keeps the count that was last saved in the header.
+ * The file may be physically longer than its block count,
+ * because the file manager preallocates space in extents;
+ * the object therefore also keeps the file's capacity,
+ * which is the number of blocks the file physically holds.
+ * If the file manager serves reads from memory-mapped regions,
+ * the object also caches the file's mapped regions.
+ * <p>
+ * The channel may be closed by the file manager when too many
+ * files are open, and reopened when the file is next used;
+ * the other information about the file is kept in the meantime.
+ * The file manager pins the channel while using it,
+ * so that it is not closed during an operation.
+ * The pin count is an atomic counter, so that pinning an open channel
+ * takes no lock; to close the channel, the file manager
+ * atomically changes a zero pin count to a negative one,
+ * which keeps the channel from being pinned until it is closed.
+ * The object also keeps the time the channel was last pinned,
+ * so that the file manager can close the least recently used channel.
+ * <p>
+ * The file manager deletes a file only while
+ * it has exclusive use of the file, that is, while no
+ * other thread has its channel pinned.
+ * <p>
+ * Its monitor is used to serialize appends to the file;
+ * reads and writes of existing blocks are not synchronized.
+ */
+class OpenFile {
+   private File file;
+   private volatile FileChannel channel = null;
+   private AtomicInteger pins = new AtomicInteger(0);  // negative while the channel is being closed
+   private volatile long lastUsed = 0;
+   private volatile boolean exclusive = false;
+   private volatile int numBlocks = 0;
+   private volatile int capacity = 0;
+   private volatile int savedSize = 0;
+   private AtomicLong writes = new AtomicLong(0);
+   private volatile long forced = 0;
+   private Object forceLock = new Object();
+   private ConcurrentMap<Integer,MappedByteBuffer> regions
+         = new ConcurrentHashMap<Integer,MappedByteBuffer>();
+   
+   /**
+    * Creates an object for the specified file.
+    * The file has no open channel and no blocks,
+    * until the file manager opens it and records its size.
+    * @param file the database file
+    */
+   OpenFile(File file) {
+      this.file = file;
+   }
+   
+   /**
+    * Returns the channel of the file,
+    * or null if the channel is closed.
+    * @return the file channel
+    */
+   FileChannel channel() {
+      return channel;
+   }
+   
+   /**
+    * Opens a channel to the file, creating the file if necessary.
+    * @throws IOException
+    */
+   void open() throws IOException {
+      channel = new RandomAccessFile(file, "rw").getChannel();
+   }
+   
+   /**
+    * Closes the channel to the file, unless it is pinned.
+    * The channel cannot be pinned while it is being closed.
+    * @return true if the channel was closed
+    * @throws IOException
+    */
+   boolean closeIfUnpinned() throws IOException {
+      if (!pins.compareAndSet(0, -1))
+         return false;
+      try {
+         FileChannel fc = channel;
+         channel = null;
+         fc.close();
+      }
+      finally {
+         pins.set(0);
+      }
+      return true;
+   }
+   
+   /**
+    * Increases the pin count of the channel,
+    * unless the channel is being closed.
+    * @return true if the channel was pinned
+    */
+   boolean pin() {
+      while (true) {
+         int p = pins.get();
+         if (p < 0)
+            return false;
+         if (pins.compareAndSet(p, p+1)) {
+            lastUsed = System.nanoTime();
+            return true;
+         }
+      }
+   }
+   
+   /**
+    * Decreases the pin count of the channel.
+    * @return the new pin count
+    */
+   int unpin() {
+      return pins.decrementAndGet();
+   }
+   
+   /**
+    * Returns true if the channel is in use.
+    * @return true if the channel is pinned
+    */
+   boolean isPinned() {
+      return pins.get() > 0;
+   }
+   
+   /**
+    * Returns the time at which the channel was last pinned.
+    * @return the time of the last pin, in nanoseconds
+    */
+   long lastUsed() {
+      return lastUsed;
+   }
+   
+   /**
+    * Returns true if a thread has, or is waiting for,
+    * exclusive use of the file.
+    * @return true if the file is reserved for exclusive use
+    */
+   boolean isExclusive() {
+      return exclusive;
+   }
+   
+   /**
+    * Reserves or releases the file for exclusive use.
+    * @param exclusive true if the file is to be reserved
+    */
+   void setExclusive(boolean exclusive) {
+      this.exclusive = exclusive;
+   }
+   
+   /**
+    * Returns the number of blocks in the file.
+    * @return the number of blocks
+    */
+   int size() {
+      return numBlocks;
+   }
+   
+   /**
+    * Records that the file now has at least the specified
+    * number of blocks.
+    * This method is called after a block has been written
+    * at or past the end of the file.
+    * @param newsize the minimum number of blocks in the file
+    */
+   synchronized void extendTo(int newsize) {
+      if (newsize > numBlocks)
+         numBlocks = newsize;
+      if (newsize > capacity)
+         capacity = newsize;
+   }
+   
+   /**
+    * Returns the number of blocks physically in the file,
+    * including the preallocated blocks past its end.
+    * @return the capacity of the file
+    */
+   int capacity() {
+      return capacity;
+   }
+   
+   /**
+    * Records that space for the specified number
+    * of blocks has been allocated in the file.
+    * @param newcapacity the number of blocks physically in the file
+    */
+   synchronized void allocated(int newcapacity) {
+      if (newcapacity > capacity)
+         capacity = newcapacity;
+   }
+   
+   /**
+    * Returns the number of blocks last saved in the file's header.
+    * @return the saved number of blocks
+    */
+   int savedSize() {
+      return savedSize;
+   }
+   
+   /**
+    * Records that the specified number of blocks
+    * has been saved in the file's header.
+    * @param size the saved number of blocks
+    */
+   void sizeSaved(int size) {
+      savedSize = size;
+   }
+   
+   /**
+    * Records that a write to the file has completed.
+    */
+   void written() {
+      writes.incrementAndGet();
+   }
+   
+   /**
+    * Returns true if the file has been written
+    * since it was last forced to disk,
+    * or if its size has not been saved.
+    * @return true if the file has unforced writes
+    */
+   boolean needsForce() {
+      return writes.get() > forced || numBlocks != savedSize;
+   }
+   
+   /**
+    * Forces all completed writes of the file to disk.
+    * The channel must be pinned by the caller.
+    * If another thread is forcing the file, the method
+    * waits for it and then forces again only if there
+    * were writes that the other force may not have covered.
+    * @throws IOException
+    */
+   void force() throws IOException {
+      synchronized (forceLock) {
+         long target = writes.get();
+         if (target <= forced)
+            return;
+         channel.force(true);
+         forced = target;
+      }
+   }
+   
+   /**
+    * Returns the specified mapped region of the file,
+    * or null if the region has not been mapped.
+    * @param regionnum the number of the region
+    * @return the mapped region
+    */
+   MappedByteBuffer region(int regionnum) {
+      return regions.get(regionnum);
+   }
+   
+   /**
+    * Saves the specified mapped region of the file,
+    * replacing any previous (shorter) mapping of that region.
+    * @param regionnum the number of the region
+    * @param mbb the mapped region
+    */
+   void setRegion(int regionnum, MappedByteBuffer mbb) {
+      regions.put(regionnum, mbb);
+   }
+}
@@ -6,9 +6,20 @@ import java.nio.charset.Charset;
 
 /**
  * The contents of a disk block in memory.
- * A page is treated as an array of BLOCK_SIZE bytes.
+ * A page is treated as an array of {@link #blockSize()} bytes.
  * There are methods to get/set values into this array,
  * and to read/write the contents of this array to a disk block.
+ * The page's buffer also holds the trailer that the file manager
+ * keeps past those bytes, such as the page LSN and checksum;
+ * the set methods refuse to write into it.
+ * <p>
+ * The get/set methods access the array at absolute offsets
+ * and never change the position of the underlying byte buffer,
+ * so they are not synchronized and concurrent readers do not contend.
+ * Only the methods that transfer the page to or from disk,
+ * which do use the buffer's position, are synchronized.
+ * A page that is shared between threads, such as the page of a
+ * {@link simpledb.buffer.Buffer Buffer}, is protected by its owner.
  * 
  * For an example of how to use Page and 
  * {@link Block} objects, 
@@ -37,12 +48,36 @@ import java.nio.charset.Charset;
  */
 public class Page {
    /**
-    * The number of bytes in a block.
+    * The default number of bytes in a block.
     * This value is set unreasonably low, so that it is easier
     * to create and test databases having a lot of blocks.
     * A more realistic value would be 4K.
     */
-   public static final int BLOCK_SIZE = 400;
+   public static final int DEFAULT_BLOCK_SIZE = 400;
+   
+   private static int blockSize = DEFAULT_BLOCK_SIZE;
+   
+   /**
+    * The number of bytes of a block that are available to a page.
+    * The block size is chosen when a database is created,
+    * and is set by the {@link FileMgr} when the database is opened;
+    * it excludes the trailer that the file manager reserves
+    * at the end of each block, such as its checksum.
+    * @return the number of usable bytes in a block
+    */
+   public static int blockSize() {
+      return blockSize;
+   }
+   
+   /**
+    * Sets the block size of the database.
+    * This method is called exclusively by the {@link FileMgr}
+    * constructor, before any page is created.
+    * @param size the number of usable bytes in a block
+    */
+   static void setBlockSize(int size) {
+      blockSize = size;
+   }
    
    /**
     * The size of an integer in bytes.
@@ -66,8 +101,11 @@ public class Page {
       return INT_SIZE + (n * (int)bytesPerChar);
    }
    
-   private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
    private FileMgr filemgr = SimpleDB.fileMgr();
+   // the buffer also has room for the block's trailer, such as its checksum
+   private ByteBuffer buffer = ByteBuffer.allocateDirect(filemgr.blockSize());
+   private ByteBuffer contents = buffer;
+   private boolean mapped = false; // true if contents is shared with a mapped file region
    
    /**
     * Creates a new page.  Although the constructor takes no arguments,
@@ -85,10 +123,23 @@ public class Page {
    
    /**
     * Populates the page with the contents of the specified disk block. 
+    * If the file manager uses mapped reads, then the page
+    * shares the block's mapped memory instead of copying it;
+    * the contents are copied into the page's own buffer
+    * the first time the page is modified.
     * @param blk a reference to a disk block
     */
    public synchronized void read(Block blk) {
-      filemgr.read(blk, contents);
+      ByteBuffer bb = filemgr.mappedBlock(blk);
+      if (bb != null) {
+         contents = bb;
+         mapped = true;
+      }
+      else {
+         contents = buffer;
+         mapped = false;
+         filemgr.read(blk, contents);
+      }
    }
    
    /**
@@ -108,6 +159,80 @@ public class Page {
       return filemgr.append(filename, contents);
    }
    
+   /**
+    * Returns the page LSN, which is saved with the page's block
+    * just past the bytes available to the page.
+    * It is the LSN of the most recent logged modification of the block,
+    * and is 0 for a block that has never been modified.
+    * A database of the original file layout does not save page LSNs;
+    * the method then returns -1.
+    * @return the LSN of the page, or -1 if there is none
+    */
+   public long lsn() {
+      if (!filemgr.pageLSNs())
+         return -1;
+      return contents.getLong(blockSize);
+   }
+   
+   /**
+    * Sets the page LSN, if the database saves page LSNs.
+    * @param lsn the LSN of the most recent logged modification of the page
+    */
+   public void setLSN(long lsn) {
+      if (!filemgr.pageLSNs())
+         return;
+      if (mapped)
+         unshare();
+      contents.putLong(blockSize, lsn);
+   }
+   
+   /**
+    * Populates the page with the contents of the specified page.
+    * The other page must not be modified during the copy.
+    * @param pg the page to be copied
+    */
+   public synchronized void copyFrom(Page pg) {
+      ByteBuffer src = pg.contents.duplicate();
+      src.clear();
+      buffer.clear();
+      buffer.put(src);
+      contents = buffer;
+      mapped = false;
+   }
+   
+   /**
+    * Populates the specified pages with the contents of a run
+    * of consecutive disk blocks, using a single read.
+    * The pages are not synchronized; the caller must ensure
+    * that no other thread is using them.
+    * @param first a reference to the first disk block of the run
+    * @param pages the pages to be populated, one per block
+    */
+   public static void readRun(Block first, Page[] pages) {
+      ByteBuffer[] bbs = new ByteBuffer[pages.length];
+      for (int i=0; i<pages.length; i++) {
+         pages[i].contents = pages[i].buffer;
+         pages[i].mapped = false;
+         bbs[i] = pages[i].contents;
+      }
+      pages[0].filemgr.read(first, bbs);
+   }
+   
+   /**
+    * Writes the contents of the specified pages to a run
+    * of consecutive disk blocks, using a single write.
+    * The pages are not synchronized; the caller must ensure
+    * that no other thread is using them.
+    * @param first a reference to the first disk block of the run
+    * @param pages the pages to be written, one per block
+    */
+   public static void writeRun(Block first, Page[] pages) {
+      ByteBuffer[] bbs = new ByteBuffer[pages.length];
+      for (int i=0; i<pages.length; i++)
+         bbs[i] = pages[i].contents;
+      pages[0].filemgr.write(first, bbs);
+   }
+   
    /**
     * Returns the integer value at a specified offset of the page.
     * If an integer was not stored at that location, 
@@ -115,9 +240,8 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the integer value at that offset
     */
-   public synchronized int getInt(int offset) {
-      contents.position(offset);
-      return contents.getInt();
+   public int getInt(int offset) {
+      return contents.getInt(offset);
    }
    
    /**
@@ -125,9 +249,11 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the integer to be written to the page
     */
-   public synchronized void setInt(int offset, int val) {
-      contents.position(offset);
-      contents.putInt(val);
+   public void setInt(int offset, int val) {
+      checkBounds(offset, INT_SIZE);
+      if (mapped)
+         unshare();
+      contents.putInt(offset, val);
    }
    
    /**
@@ -137,11 +263,12 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the string value at that offset
     */
-   public synchronized String getString(int offset) {
-      contents.position(offset);
-      int len = contents.getInt();
+   public String getString(int offset) {
+      int len = contents.getInt(offset);
       byte[] byteval = new byte[len];
-      contents.get(byteval);
+      int pos = offset + INT_SIZE;
+      for (int i=0; i<len; i++)
+         byteval[i] = contents.get(pos + i);
       return new String(byteval);
    }
    
@@ -150,10 +277,40 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the string to be written to the page
     */
-   public synchronized void setString(int offset, String val) {
-      contents.position(offset);
+   public void setString(int offset, String val) {
       byte[] byteval = val.getBytes();
-      contents.putInt(byteval.length);
-      contents.put(byteval);
+      checkBounds(offset, INT_SIZE + byteval.length);
+      if (mapped)
+         unshare();
+      contents.putInt(offset, byteval.length);
+      int pos = offset + INT_SIZE;
+      for (int i=0; i<byteval.length; i++)
+         contents.put(pos + i, byteval[i]);
+   }
+   
+   /**
+    * Checks that a value of the specified size at the specified offset
+    * lies within the bytes available to the page.
+    * @throws RuntimeException if the value would overwrite the trailer
+    */
+   private void checkBounds(int offset, int size) {
+      if (offset < 0 || offset + size > blockSize)
+         throw new RuntimeException("cannot write " + size + " bytes at offset "
+                                    + offset + " of a page of " + blockSize + " bytes");
+   }
+   
+   /**
+    * Copies the shared mapped contents into the page's own buffer,
+    * so that the page can be modified without changing the file.
+    */
+   private synchronized void unshare() {
+      if (!mapped)
+         return;
+      ByteBuffer src = contents.duplicate();
+      src.clear();
+      buffer.clear();
+      buffer.put(src);
+      contents = buffer;
+      mapped = false;
    }
 }
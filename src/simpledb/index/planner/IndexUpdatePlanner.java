@@ -1,7 +1,6 @@
 package simpledb.index.planner;
 
-import java.util.Iterator;
-import java.util.Map;
+import java.util.*;
 
 import simpledb.record.RID;
 import simpledb.server.SimpleDB;
@@ -24,19 +23,24 @@ public class IndexUpdatePlanner implements UpdatePlanner {
       String tblname = data.tableName();
       Plan p = new TablePlan(tblname, tx);
       
-      // first, insert the record
+      // first, insert the record and set its fields as a single update
       UpdateScan s = (UpdateScan) p.open();
       s.insert();
       RID rid = s.getRid();
-      
-      // then modify each field, inserting an index record if appropriate
-      Map<String,IndexInfo> indexes = SimpleDB.mdMgr().getIndexInfo(tblname, tx);
+      Map<String,Constant> vals = new LinkedHashMap<String,Constant>();
       Iterator<Constant> valIter = data.vals().iterator();
       for (String fldname : data.fields()) {
          Constant val = valIter.next();
          System.out.println("Modify field " + fldname + " to val " + val);
-         s.setVal(fldname, val);
-         
+         vals.put(fldname, val);
+      }
+      s.setVals(vals);
+      
+      // then insert an index record for each indexed field
+      Map<String,IndexInfo> indexes = SimpleDB.mdMgr().getIndexInfo(tblname, tx);
+      for (Map.Entry<String,Constant> e : vals.entrySet()) {
+         String fldname = e.getKey();
+         Constant val = e.getValue();
          IndexInfo ii = indexes.get(fldname);
          if (ii != null) {
             Index idx = ii.open();
@@ -7,7 +7,8 @@ import simpledb.file.Page;
  * A class that provides the ability to read the values of
  * a log record.
  * The class has no idea what values are there.
- * Instead, the methods {@link #nextInt() nextInt}
+ * Instead, the methods {@link #nextInt() nextInt},
+ * {@link #nextLong() nextLong}
  * and {@link #nextString() nextString} read the values 
  * sequentially.
  * Thus the client is responsible for knowing how many values
@@ -17,17 +18,28 @@ import simpledb.file.Page;
 public class BasicLogRecord {
    private Page pg;
    private int pos;
+   private long lsn;
    
    /**
     * A log record located at the specified position of the specified page.
-    * This constructor is called exclusively by
-    * {@link LogIterator#next()}.
+    * This constructor is called exclusively by the
+    * iterators and readers of the log.
     * @param pg the page containing the log record
     * @param pos the position of the log record 
+    * @param lsn the LSN of the log record
     */
-   public BasicLogRecord(Page pg, int pos) {
+   public BasicLogRecord(Page pg, int pos, long lsn) {
       this.pg = pg;
       this.pos = pos;
+      this.lsn = lsn;
+   }
+   
+   /**
+    * Returns the LSN of the log record.
+    * @return the LSN of the log record
+    */
+   public long lsn() {
+      return lsn;
    }
    
    /**
@@ -41,6 +53,17 @@ public class BasicLogRecord {
       return result;
    }
    
+   /**
+    * Returns the next value of the current log record, 
+    * assuming it is a long.
+    * @return the next value of the current log record
+    */
+   public long nextLong() {
+      long high = nextInt();
+      long low = nextInt();
+      return (high << 32) | (low & 0xffffffffL);
+   }
+   
    /**
     * Returns the next value of the current log record, 
     * assuming it is a string.
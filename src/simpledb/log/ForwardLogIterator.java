@@ -0,0 +1,86 @@
+package simpledb.log;
+
+import static simpledb.file.Page.*;
+import simpledb.file.Page;
+import java.util.*;
+
+/**
+ * A class that provides the ability to move through the
+ * records of the log file in forward order,
+ * as needed to redo them during recovery.
+ * The records of a block are chained from last to first,
+ * so the iterator follows the chain of each block it reads
+ * and then returns the block's records in reverse.
+ */
+class ForwardLogIterator implements Iterator<BasicLogRecord> {
+   private LogMgr logMgr;
+   private int blknum, lastblk;
+   private Page pg = new Page();
+   private List<Integer> pointers = new ArrayList<Integer>();  // of the current block's records, in order
+   private int next = 0;
+
+   /**
+    * Creates an iterator for the records in the log file,
+    * positioned before the first record whose LSN
+    * is at least the specified one.
+    * This constructor is called exclusively by
+    * {@link LogMgr#iterator(long)}.
+    * @param logMgr the log manager, which locates the log blocks
+    * @param lsn the LSN at which to start
+    * @param firstblk the number of the first log block that has not been truncated
+    * @param lastblk the number of the last log block
+    */
+   ForwardLogIterator(LogMgr logMgr, long lsn, int firstblk, int lastblk) {
+      this.logMgr = logMgr;
+      this.lastblk = lastblk;
+      blknum = (lsn > 0) ? (int)((lsn - 1) / blockSize()) : 0;
+      blknum = Math.max(blknum, firstblk);
+      readBlock();
+      while (next < pointers.size() && lsnOf(pointers.get(next)) < lsn)
+         next++;
+   }
+
+   /**
+    * Determines if there is a later log record.
+    * @return true if there is a later record
+    */
+   public boolean hasNext() {
+      while (next == pointers.size() && blknum < lastblk) {
+         blknum++;
+         readBlock();
+      }
+      return next < pointers.size();
+   }
+
+   /**
+    * Moves to the next log record in forward order.
+    * @return the next log record
+    */
+   public BasicLogRecord next() {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      int pointer = pointers.get(next++);
+      return new BasicLogRecord(pg, pg.getInt(pointer) + INT_SIZE, lsnOf(pointer));
+   }
+
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Reads the current block, and finds the positions
+    * of the pointers that end its records.
+    */
+   private void readBlock() {
+      logMgr.read(blknum, pg);
+      pointers.clear();
+      for (int pos = pg.getInt(LogMgr.LAST_POS); pos != 0; pos = pg.getInt(pos))
+         pointers.add(pos);
+      Collections.reverse(pointers);
+      next = 0;
+   }
+
+   private long lsnOf(int pointer) {
+      return (long)blknum * blockSize() + pointer + INT_SIZE;
+   }
+}
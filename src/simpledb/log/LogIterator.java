@@ -1,6 +1,6 @@
 package simpledb.log;
 
-import static simpledb.file.Page.INT_SIZE;
+import static simpledb.file.Page.*;
 import simpledb.file.*;
 import java.util.Iterator;
 
@@ -11,7 +11,8 @@ import java.util.Iterator;
  * @author Edward Sciore
  */
 class LogIterator implements Iterator<BasicLogRecord> {
-   private Block blk;
+   private LogMgr logMgr;
+   private int blknum, firstblk;
    private Page pg = new Page();
    private int currentrec;
    
@@ -20,10 +21,15 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * positioned after the last log record.
     * This constructor is called exclusively by
     * {@link LogMgr#iterator()}.
+    * @param logMgr the log manager, which locates the log blocks
+    * @param blknum the number of the last log block
+    * @param firstblk the number of the first log block that has not been truncated
     */
-   LogIterator(Block blk) {
-      this.blk = blk;
-      pg.read(blk);
+   LogIterator(LogMgr logMgr, int blknum, int firstblk) {
+      this.logMgr = logMgr;
+      this.blknum = blknum;
+      this.firstblk = firstblk;
+      logMgr.read(blknum, pg);
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
    
@@ -33,7 +39,7 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentrec>0 || blk.number()>0;
+      return currentrec>0 || blknum>firstblk;
    }
    
    /**
@@ -46,8 +52,10 @@ class LogIterator implements Iterator<BasicLogRecord> {
    public BasicLogRecord next() {
       if (currentrec == 0) 
          moveToNextBlock();
+      int pointer = currentrec;
       currentrec = pg.getInt(currentrec);
-      return new BasicLogRecord(pg, currentrec+INT_SIZE);
+      long lsn = (long)blknum * blockSize() + pointer + INT_SIZE;
+      return new BasicLogRecord(pg, currentrec+INT_SIZE, lsn);
    }
    
    public void remove() {
@@ -59,8 +67,8 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * and positions it after the last record in that block.
     */
    private void moveToNextBlock() {
-      blk = new Block(blk.fileName(), blk.number()-1);
-      pg.read(blk);
+      blknum--;
+      logMgr.read(blknum, pg);
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
 }
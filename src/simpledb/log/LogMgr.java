@@ -9,10 +9,47 @@ import java.util.*;
  * The low-level log manager.
  * This log manager is responsible for writing log records
  * into a log file.
- * A log record can be any sequence of integer and string values.
+ * A log record can be any sequence of integer, long and string values.
  * The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link simpledb.tx.recovery.RecoveryMgr recovery manager}.
+ * <p>
+ * The LSN of a log record is the byte offset, from the start
+ * of the log file, just past the end of the record.
+ * LSNs therefore increase with every record, and the log
+ * manager keeps the LSN up to which the log has been forced
+ * (see {@link #flushedLSN()}).
+ * A flush of a record that is already on disk returns
+ * at once, without locking or I/O.
+ * <p>
+ * The log manager keeps a ring of log pages.
+ * Records are appended to the current page; when it is full,
+ * it is handed to a {@link LogWriter} thread, which writes
+ * the full pages to disk in order, and appending continues
+ * in the next page of the ring.
+ * Thus an append does no I/O, and only waits
+ * if every other page of the ring is still waiting to be written.
+ * <p>
+ * Flushes use group commit.
+ * Appending a record only holds the log manager's monitor
+ * for as long as it takes to copy the record into the page.
+ * A thread that flushes the log waits for the writer to write the
+ * full pages that precede its record, and writes the current page
+ * (if necessary) while holding the monitor,
+ * but forces it to disk without holding it, so that other
+ * transactions can keep appending records in the meantime.
+ * Flushes are serialized by a separate lock, and a thread that
+ * acquires it skips the flush if a previous force already covered its records.
+ * Thus when many transactions commit at once,
+ * one write and force of the log makes all of their commit records durable.
+ * <p>
+ * The log is stored in segment files of a fixed number of blocks,
+ * named after the log file followed by the number of the segment.
+ * Log blocks are numbered consecutively across the segments.
+ * Once the recovery manager no longer needs the records
+ * before some point of the log (see {@link #truncate(long)}),
+ * the segments that lie entirely before that point are deleted,
+ * so the log does not grow without bound.
  * @author Edward Sciore
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
@@ -22,15 +59,44 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     */
    public static final int LAST_POS = 0;
 
+   /**
+    * The default number of pages in the log buffer.
+    */
+   public static final int DEFAULT_LOG_BUFFERS = 8;
+
+   /**
+    * The default number of blocks in a log segment.
+    */
+   public static final int DEFAULT_SEGMENT_SIZE = 256;
+
+   /**
+    * The smallest number of bytes that the values of a log
+    * record must be able to occupy, enough for an update
+    * record of a short filename and string.
+    */
+   public static final int MIN_RECORD_SIZE = 64;
+
    private String logfile;
-   private Page mypage = new Page();
+   private int segmentSize;
+   private int firstSegment;  // the oldest segment that has not been truncated; guarded by this
+   private Page[] ring;
+   private int current = 0;  // the index of the page being filled
+   private int pending = 0;  // the number of full pages before it that are not yet written
+   private Page mypage;
    private Block currentblk;
    private int currentpos;
+   private RuntimeException writeError = null;
+   private LogWriter writer;
+   private boolean stopped = false;  // guarded by this
+   private long written = 0;  // the LSN up to which the log has been written; guarded by this
+   private Object flushLock = new Object();
+   private volatile long durable = 0;  // the LSN up to which the log has been forced; changed under flushLock
 
    /**
     * Creates the manager for the specified log file.
     * If the log file does not yet exist, it is created
     * with an empty first block.
+    * The log buffer has {@value #DEFAULT_LOG_BUFFERS} pages.
     * This constructor depends on a {@link FileMgr} object
     * that it gets from the method
     * {@link simpledb.server.SimpleDB#fileMgr()}.
@@ -41,15 +107,67 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * @param logfile the name of the log file
     */
    public LogMgr(String logfile) {
+      this(logfile, DEFAULT_LOG_BUFFERS);
+   }
+
+   /**
+    * Creates the manager for the specified log file,
+    * having a log buffer of the specified number of pages.
+    * The log has segments of {@value #DEFAULT_SEGMENT_SIZE} blocks.
+    * @param logfile the name of the log file
+    * @param numbuffers the number of pages in the log buffer, at least 2
+    */
+   public LogMgr(String logfile, int numbuffers) {
+      this(logfile, numbuffers, DEFAULT_SEGMENT_SIZE);
+   }
+
+   /**
+    * Creates the manager for the specified log file,
+    * having a log buffer of the specified number of pages
+    * and segments of the specified number of blocks.
+    * The segment size is saved in the database's settings
+    * the first time the log is opened, and the saved size is
+    * used from then on, since it must not change while the log has segments.
+    * The manager finds the existing segments of the log,
+    * and starts its log writer thread.
+    * @param logfile the name of the log file
+    * @param numbuffers the number of pages in the log buffer, at least 2
+    * @param segmentsize the number of blocks in a log segment, if it has not been saved
+    */
+   public LogMgr(String logfile, int numbuffers, int segmentsize) {
+      if (numbuffers < 2)
+         throw new RuntimeException("the log needs at least 2 buffers");
+      if (maxRecordSize() < MIN_RECORD_SIZE)
+         throw new RuntimeException("block size " + blockSize() + " is too small for the log");
+      FileMgr fm = SimpleDB.fileMgr();
+      String saved = fm.setting(logfile + ".segmentsize");
+      if (saved != null)
+         segmentsize = Integer.parseInt(saved);
+      if (segmentsize < 1)
+         throw new RuntimeException("bad log segment size " + segmentsize);
+      if (saved == null)
+         fm.saveSetting(logfile + ".segmentsize", Integer.toString(segmentsize));
       this.logfile = logfile;
-      int logsize = SimpleDB.fileMgr().size(logfile);
-      if (logsize == 0)
-         appendNewBlock();
+      this.segmentSize = segmentsize;
+      ring = new Page[numbuffers];
+      for (int i=0; i<numbuffers; i++)
+         ring[i] = new Page();
+      mypage = ring[current];
+      int logsize = findSegments();
+      if (logsize == firstSegment * segmentSize) {
+         currentblk = new Block(logfile, logsize);
+         setLastRecordPosition(0);
+         currentpos = INT_SIZE;
+         written = durable = endOfLog() - INT_SIZE;
+      }
       else {
          currentblk = new Block(logfile, logsize-1);
-         mypage.read(currentblk);
+         mypage.read(segmentBlock(currentblk.number()));
          currentpos = getLastRecordPosition() + INT_SIZE;
+         written = durable = endOfLog();  // the existing log is already on disk
       }
+      writer = new LogWriter(this);
+      writer.start();
    }
 
    /**
@@ -58,95 +176,382 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * All earlier log records will also be written to disk.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= currentLSN())
-         flush();
+   public void flush(long lsn) {
+      if (lsn <= durable)
+         return;
+      synchronized (flushLock) {
+         if (lsn <= durable)
+            return;  // another thread's flush included the record
+         long end;
+         synchronized (this) {
+            while (written < lsn && pending > 0)
+               awaitWriter();
+            if (written < lsn)
+               writePage();  // the record is in the current page
+            end = written;
+         }
+         // force each segment written since the previous flush
+         int first = segment(durable / blockSize());
+         int last = segment((end - 1) / blockSize());
+         for (int seg=first; seg<=last; seg++)
+            SimpleDB.fileMgr().force(segmentName(seg));
+         durable = end;
+      }
+   }
+
+   /**
+    * Flushes the log, and then stops the log writer
+    * and waits for it to finish.
+    * The log cannot be appended to
+    * beyond its current page afterwards.
+    * This method is called by {@link simpledb.server.SimpleDB#shutdown()}.
+    */
+   public void shutdown() {
+      flush(lastLSN());
+      synchronized (this) {
+         stopped = true;
+         notifyAll();
+      }
+      try {
+         writer.join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Returns the LSN up to which the log is on disk.
+    * Every record whose LSN is at most this value
+    * is guaranteed to survive a crash.
+    * @return the LSN of the flushed portion of the log
+    */
+   public long flushedLSN() {
+      return durable;
+   }
+
+   /**
+    * Returns the LSN of the most recent log record.
+    * @return the LSN of the end of the log
+    */
+   public synchronized long lastLSN() {
+      return endOfLog();
+   }
+
+   /**
+    * Deletes the log segments that lie entirely before
+    * the record having the specified LSN.
+    * The caller guarantees that no earlier record
+    * will be needed again, either by a rollback or by recovery;
+    * the segment holding the record itself is kept.
+    * @param lsn the LSN of the oldest record that is still needed
+    */
+   public void truncate(long lsn) {
+      int from, to;
+      synchronized (this) {
+         int blknum = (int)((lsn - 1) / blockSize());
+         from = firstSegment;
+         to = Math.min(segment(blknum), segment(currentblk.number()));
+         if (to <= from)
+            return;
+         firstSegment = to;
+      }
+      for (int seg=from; seg<to; seg++)
+         SimpleDB.fileMgr().delete(segmentName(seg));
+   }
+
+   /**
+    * Returns a reader of log records by their LSN.
+    * @return a new log reader
+    */
+   public LogReader reader() {
+      return new LogReader(this);
    }
 
    /**
     * Returns an iterator for the log records,
     * which will be returned in reverse order starting with the most recent.
+    * The iterator stops at the beginning of the oldest segment.
     * @see java.lang.Iterable#iterator()
     */
-   public synchronized Iterator<BasicLogRecord> iterator() {
-      flush();
-      return new LogIterator(currentblk);
+   public Iterator<BasicLogRecord> iterator() {
+      int blknum, firstblk;
+      synchronized (this) {
+         blknum = currentblk.number();
+         firstblk = firstSegment * segmentSize;
+      }
+      return new LogIterator(this, blknum, firstblk);
+   }
+
+   /**
+    * Returns an iterator for the log records in forward order,
+    * starting with the first record whose LSN is
+    * at least the specified one, and ending with the most recent.
+    * The iteration starts no earlier than the oldest segment.
+    * @param lsn the LSN at which to start
+    * @return an iterator for the subsequent log records
+    */
+   public Iterator<BasicLogRecord> iterator(long lsn) {
+      int lastblk, firstblk;
+      synchronized (this) {
+         lastblk = currentblk.number();
+         firstblk = firstSegment * segmentSize;
+      }
+      return new ForwardLogIterator(this, lsn, firstblk, lastblk);
+   }
+
+   /**
+    * Reads the specified block of the log into a page.
+    * A block that is still in the log buffer is copied from
+    * the buffer instead of being read from disk, since its block
+    * on disk may be in the middle of being written:
+    * the current block is rewritten by every flush,
+    * and a full block is written by the log writer.
+    * Either write could otherwise be seen half done.
+    * @param blknum the number of a log block
+    * @param pg the page to be populated
+    */
+   void read(int blknum, Page pg) {
+      synchronized (this) {
+         int last = currentblk.number();
+         if (blknum >= last - pending && blknum <= last) {
+            pg.copyFrom(ring[(current - (last - blknum) + ring.length) % ring.length]);
+            return;
+         }
+      }
+      // the block was written before it left the buffer, and is not written again
+      pg.read(segmentBlock(blknum));
+   }
+
+   /**
+    * Returns the block of a segment file that holds
+    * the specified block of the log.
+    */
+   private Block segmentBlock(int blknum) {
+      return new Block(segmentName(segment(blknum)), blknum % segmentSize);
    }
 
    /**
     * Appends a log record to the file.
-    * The record contains an arbitrary array of strings and integers.
+    * The record contains an arbitrary array of strings, integers and longs.
     * The method also writes an integer to the end of each log record whose value
     * is the offset of the corresponding integer for the previous log record.
     * These integers allow log records to be read in reverse order.
     * @param rec the list of values
-    * @return the LSN of the final value
+    * @return the LSN of the record
     */
-   public synchronized int append(Object[] rec) {
+   public synchronized long append(Object[] rec) {
+      appendRecord(rec);
+      return endOfLog();
+   }
+
+   /**
+    * Returns the largest number of bytes that the values
+    * of a log record can occupy.
+    * A larger record does not fit into a log block.
+    * @return the maximum size of a log record
+    */
+   public static int maxRecordSize() {
+      // a block holds the pointer to the last record, and each record ends with a pointer
+      return blockSize() - 2 * INT_SIZE - 1;
+   }
+
+   /**
+    * Calculates the size of the specified integer, long or string.
+    * @param val the value
+    * @return the size of the value, in bytes
+    */
+   public static int size(Object val) {
+      if (val instanceof String) {
+         String sval = (String) val;
+         return STR_SIZE(sval.length());
+      }
+      else if (val instanceof Long)
+         return 2 * INT_SIZE;
+      else
+         return INT_SIZE;
+   }
+
+   /**
+    * Writes the oldest full page of the log buffer to disk,
+    * waiting until there is one.
+    * This method is called repeatedly by the {@link LogWriter} thread.
+    * The page is written without holding the log manager's monitor;
+    * it cannot change, because it is not reused until it has been written.
+    * @return false if the log has been shut down and there is no page to write
+    * @throws InterruptedException if the writer is interrupted while waiting
+    */
+   boolean writeFullPage() throws InterruptedException {
+      Page pg;
+      Block blk;
+      synchronized (this) {
+         while (pending == 0 && !stopped)
+            wait();
+         if (pending == 0)
+            return false;
+         pg = ring[(current - pending + ring.length) % ring.length];
+         blk = new Block(logfile, currentblk.number() - pending);
+      }
+      try {
+         pg.write(segmentBlock(blk.number()));
+      }
+      catch (RuntimeException e) {
+         synchronized (this) {
+            writeError = e;
+            notifyAll();
+         }
+         throw e;
+      }
+      synchronized (this) {
+         pending--;
+         written = Math.max(written, (long)(blk.number() + 1) * blockSize());
+         notifyAll();
+      }
+      return true;
+   }
+
+   /**
+    * Hands the current page to the log writer,
+    * and starts a new block in the next page of the ring,
+    * waiting if that page has not yet been written.
+    */
+   private void moveToNextPage() {
+      while (pending == ring.length - 1)
+         awaitWriter();
+      pending++;
+      notifyAll();
+      current = (current + 1) % ring.length;
+      mypage = ring[current];
+      currentblk = new Block(logfile, currentblk.number() + 1);
+      setLastRecordPosition(0);
+      currentpos = INT_SIZE;
+   }
+
+   /**
+    * Waits for the log writer to write a page.
+    * The caller must hold the log manager's monitor.
+    */
+   private void awaitWriter() {
+      if (writeError != null)
+         throw new RuntimeException("cannot write the log", writeError);
+      if (stopped)
+         throw new RuntimeException("cannot write the log after it has been shut down");
+      try {
+         wait();
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("interrupted while waiting for the log writer");
+      }
+   }
+
+   /**
+    * Appends a log record to the current page,
+    * moving to the next page if the record does not fit.
+    * @param rec the list of values
+    */
+   private void appendRecord(Object[] rec) {
       int recsize = INT_SIZE;  // 4 bytes for the integer that points to the previous log record
       for (Object obj : rec)
          recsize += size(obj);
-      if (currentpos + recsize >= BLOCK_SIZE){ // the log record doesn't fit,
-         flush();        // so move to the next block.
-         appendNewBlock();
-      }
+      if (currentpos + recsize >= blockSize()) // the log record doesn't fit,
+         moveToNextPage();                        // so move to the next block.
       for (Object obj : rec)
          appendVal(obj);
       finalizeRecord();
-      return currentLSN();
    }
 
    /**
     * Adds the specified value to the page at the position denoted by
     * currentpos.  Then increments currentpos by the size of the value.
-    * @param val the integer or string to be added to the page
+    * A long is stored as two integers, the high-order one first.
+    * @param val the integer, long or string to be added to the page
     */
    private void appendVal(Object val) {
       if (val instanceof String)
          mypage.setString(currentpos, (String)val);
+      else if (val instanceof Long) {
+         long lval = (Long)val;
+         mypage.setInt(currentpos, (int)(lval >>> 32));
+         mypage.setInt(currentpos + INT_SIZE, (int)lval);
+      }
       else
          mypage.setInt(currentpos, (Integer)val);
       currentpos += size(val);
    }
 
    /**
-    * Calculates the size of the specified integer or string.
-    * @param val the value
-    * @return the size of the value, in bytes
+    * Returns the position just past the most recent log record,
+    * as a byte offset from the start of the log file.
+    * This is the LSN of the most recent log record.
+    * @return the end of the log
     */
-   private int size(Object val) {
-      if (val instanceof String) {
-         String sval = (String) val;
-         return STR_SIZE(sval.length());
-      }
-      else
-         return INT_SIZE;
+   private long endOfLog() {
+      return (long)currentblk.number() * blockSize() + currentpos;
    }
 
    /**
-    * Returns the LSN of the most recent log record.
-    * As implemented, the LSN is the block number where the record is stored.
-    * Thus every log record in a block has the same LSN.
-    * @return the LSN of the most recent log record
+    * Writes the current page to the log file.
+    * The page is not forced to disk.
+    * This method is only called when the preceding
+    * full pages have been written.
     */
-   private int currentLSN() {
-      return currentblk.number();
+   private void writePage() {
+      mypage.write(segmentBlock(currentblk.number()));
+      written = endOfLog();
    }
 
    /**
-    * Writes the current page to the log file.
+    * Finds the segment files of the log, and sets the
+    * oldest segment.
+    * Only the segments that run without a gap to the newest one
+    * belong to the log; a gap can be left by a crash
+    * that loses some of the deletions of a truncation.
+    * A log in a single file, as written before the log had
+    * segments, holds records in a format that recovery
+    * cannot read, and so the database is not opened.
+    * @return the number of blocks in the log, including the truncated ones
+    * @throws RuntimeException if the log is in the old format
     */
-   private void flush() {
-      mypage.write(currentblk);
+   private int findSegments() {
+      FileMgr fm = SimpleDB.fileMgr();
+      if (fm.files(logfile).contains(logfile))
+         throw new RuntimeException("cannot open log " + logfile + " in the old format;"
+                                    + " recover the database with the previous version, then delete the file");
+      Set<Integer> segs = new HashSet<Integer>();
+      for (String filename : fm.files(logfile + ".")) {
+         try {
+            segs.add(Integer.parseInt(filename.substring(logfile.length() + 1)));
+         }
+         catch (NumberFormatException e) {
+            // not a segment of the log
+         }
+      }
+      if (segs.isEmpty()) {
+         firstSegment = 0;
+         return 0;
+      }
+      int last = Collections.max(segs);
+      firstSegment = last;
+      while (segs.contains(firstSegment - 1))
+         firstSegment--;
+      int size = fm.size(segmentName(last));
+      if (size == 0 && last > firstSegment)
+         return last * segmentSize;  // the newest segment was created, but no block reached the disk
+      return last * segmentSize + size;
    }
 
    /**
-    * Clear the current page, and append it to the log file.
+    * Returns the segment that holds the specified block of the log.
     */
-   private void appendNewBlock() {
-      setLastRecordPosition(0);
-      currentpos = INT_SIZE;
-      currentblk = mypage.append(logfile);
+   private int segment(long blknum) {
+      return (int)(blknum / segmentSize);
+   }
+
+   /**
+    * Returns the name of the file of the specified segment.
+    */
+   private String segmentName(int seg) {
+      return logfile + "." + seg;
    }
 
    /**
@@ -0,0 +1,53 @@
+package simpledb.log;
+
+import static simpledb.file.Page.*;
+import simpledb.file.Page;
+
+/**
+ * A class that reads log records given their LSNs,
+ * such as when following the chain of records of a transaction.
+ * The reader keeps the log block it read most recently,
+ * so that reading several records of the same block
+ * reads the block only once.
+ * The records need not have been flushed: a block that is
+ * still in the log buffer is copied from there
+ * (see {@link LogMgr#read(int, Page)}).
+ * As with {@link LogIterator}, a record returned by the
+ * reader must be read before the next record is requested.
+ */
+public class LogReader {
+   private LogMgr logMgr;
+   private Page pg = new Page();
+   private int blknum = -1;
+   private long end = 0;  // the LSN of the last record in the page
+
+   /**
+    * Creates a reader for the records of the specified log.
+    * This constructor is called exclusively by
+    * {@link LogMgr#reader()}.
+    * @param logMgr the log manager
+    */
+   LogReader(LogMgr logMgr) {
+      this.logMgr = logMgr;
+   }
+
+   /**
+    * Returns the log record having the specified LSN.
+    * The record's block is read unless it is the current one
+    * and already holds the record; a block read from the log buffer
+    * may since have had records appended to it.
+    * @param lsn the LSN of a log record
+    * @return the log record
+    */
+   public BasicLogRecord record(long lsn) {
+      int recblk = (int)((lsn - 1) / blockSize());
+      if (recblk != blknum || lsn > end) {
+         logMgr.read(recblk, pg);
+         blknum = recblk;
+         end = (long)recblk * blockSize() + pg.getInt(LogMgr.LAST_POS) + INT_SIZE;
+      }
+      // the LSN is the position just past the record's pointer to the previous record
+      int pointer = (int)(lsn - (long)recblk * blockSize()) - INT_SIZE;
+      return new BasicLogRecord(pg, pg.getInt(pointer) + INT_SIZE, lsn);
+   }
+}
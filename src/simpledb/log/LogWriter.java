@@ -0,0 +1,34 @@
+package simpledb.log;
+
+/**
+ * A daemon thread that writes the full pages of the
+ * log buffer to the log file, in order.
+ * The pages are not forced; that is done when the
+ * log is flushed.
+ * The writer stops when the log manager is shut down
+ * and no full page remains.
+ */
+class LogWriter extends Thread {
+   private LogMgr logMgr;
+   
+   /**
+    * Creates a writer for the specified log manager.
+    * @param logMgr the log manager whose pages are written
+    */
+   LogWriter(LogMgr logMgr) {
+      super("log writer");
+      this.logMgr = logMgr;
+      setDaemon(true);
+   }
+   
+   public void run() {
+      try {
+         boolean more = true;
+         while (more)
+            more = logMgr.writeFullPage();
+      }
+      catch (InterruptedException e) {
+         // the writer was stopped
+      }
+   }
+}
@@ -98,11 +98,13 @@ public class SortPlan implements Plan {
          if (comp.compare(src, currentscan) < 0) {
          // start a new run
          currentscan.close();
+         flush(currenttemp);
          currenttemp = new TempTable(sch, tx);
          temps.add(currenttemp);
          currentscan = (UpdateScan) currenttemp.open();
       }
       currentscan.close();
+      flush(currenttemp);
       return temps;
    }
    
@@ -141,9 +143,18 @@ public class SortPlan implements Plan {
       src1.close();
       src2.close();
       dest.close();
+      flush(result);
       return result;
    }
    
+   /**
+    * Writes the completed run to disk in large batches,
+    * instead of one block at a time as its buffers are reused.
+    */
+   private void flush(TempTable run) {
+      tx.flush(run.getTableInfo().fileName());
+   }
+   
    private boolean copy(Scan src, UpdateScan dest) {
       dest.insert();
       for (String fldname : sch.fields())
@@ -1,7 +1,7 @@
 package simpledb.metadata;
 
 import static java.sql.Types.INTEGER;
-import static simpledb.file.Page.BLOCK_SIZE;
+import static simpledb.file.Page.blockSize;
 
 import simpledb.index.ehash.ExtensibleHashIndex;
 import simpledb.server.SimpleDB;
@@ -92,7 +92,7 @@ public class IndexInfo {
     */
    public int blocksAccessed() {
       TableInfo idxti = new TableInfo("", schema());
-      int rpb = BLOCK_SIZE / idxti.recordLength();
+      int rpb = blockSize() / idxti.recordLength();
       int numblocks = si.recordsOutput() / rpb;
       // Call HashIndex.searchCost for hash indexing
       return HashIndex.searchCost(numblocks, rpb);
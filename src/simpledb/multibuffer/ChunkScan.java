@@ -32,6 +32,9 @@ public class ChunkScan implements Scan {
       this.endbnum   = endbnum;
       this.sch = ti.schema();
       String filename = ti.fileName();
+      // start reading the whole chunk before pinning it block by block
+      for (int i=startbnum+1; i<=endbnum; i++)
+         tx.prefetch(new Block(filename, i));
       for (int i=startbnum; i<=endbnum; i++) {
          Block blk = new Block(filename, i);
          pages.add(new RecordPage(blk, ti, tx));
@@ -1,6 +1,6 @@
 package simpledb.planner;
 
-import java.util.Iterator;
+import java.util.*;
 import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 import simpledb.parse.*;
@@ -43,11 +43,11 @@ public class BasicUpdatePlanner implements UpdatePlanner {
       Plan p = new TablePlan(data.tableName(), tx);
       UpdateScan us = (UpdateScan) p.open();
       us.insert();
+      Map<String,Constant> vals = new LinkedHashMap<String,Constant>();
       Iterator<Constant> iter = data.vals().iterator();
-      for (String fldname : data.fields()) {
-         Constant val = iter.next();
-         us.setVal(fldname, val);
-      }
+      for (String fldname : data.fields())
+         vals.put(fldname, iter.next());
+      us.setVals(vals);
       us.close();
       return 1;
    }
@@ -1,6 +1,7 @@
 package simpledb.query;
 
 import simpledb.record.*;
+import java.util.Map;
 
 /**
  * The scan class corresponding to the <i>select</i> relational
@@ -81,6 +82,11 @@ public class SelectScan implements UpdateScan {
       us.setString(fldname, val);
    }
    
+   public void setVals(Map<String,Constant> vals) {
+      UpdateScan us = (UpdateScan) s;
+      us.setVals(vals);
+   }
+   
    public void delete() {
       UpdateScan us = (UpdateScan) s;
       us.delete();
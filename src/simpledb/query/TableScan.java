@@ -3,6 +3,7 @@ package simpledb.query;
 import static java.sql.Types.INTEGER;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
+import java.util.*;
 
 /**
  * The Scan class corresponding to a table.
@@ -83,6 +84,28 @@ public class TableScan implements UpdateScan {
          rf.setString(fldname, (String)val.asJavaVal());
    }
    
+   /**
+    * Sets the values of several fields, as Constants.
+    * As in {@link #setVal(String, Constant)}, the schema
+    * determines the type of each field, and a value
+    * of the other type is rejected.
+    * The record file logs the values as a single update.
+    * @see simpledb.query.UpdateScan#setVals(java.util.Map)
+    */
+   public void setVals(Map<String,Constant> vals) {
+      Map<String,Object> javavals = new LinkedHashMap<String,Object>();
+      for (Map.Entry<String,Constant> e : vals.entrySet()) {
+         String fldname = e.getKey();
+         Object val = e.getValue().asJavaVal();
+         boolean isint = (sch.type(fldname) == INTEGER);
+         if (isint ? !(val instanceof Integer) : !(val instanceof String))
+            throw new RuntimeException("cannot set field " + fldname + " to " + val
+                                       + ": the value has the wrong type");
+         javavals.put(fldname, val);
+      }
+      rf.setValues(javavals);
+   }
+   
    public void setInt(String fldname, int val) {
       rf.setInt(fldname, val);
    }
@@ -1,6 +1,7 @@
 package simpledb.query;
 
 import simpledb.record.RID;
+import java.util.Map;
 
 /**
  * The interface implemented by all updateable scans.
@@ -28,6 +29,13 @@ public interface UpdateScan extends Scan {
     */
    public void setString(String fldname, String val);
    
+   /**
+    * Modifies several field values of the current record.
+    * The modification is logged as a single update.
+    * @param vals the new values, keyed by field name
+    */
+   public void setVals(Map<String,Constant> vals);
+   
    /**
     * Inserts a new record somewhere in the scan.
     */
@@ -1,7 +1,9 @@
 package simpledb.record;
 
 import simpledb.file.Block;
+import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
+import java.util.Map;
 
 /**
  * Manages a file of records.
@@ -15,6 +17,7 @@ public class RecordFile {
    private String filename;
    private RecordPage rp;
    private int currentblknum;
+   private int prefetchedblknum;
    
    /**
     * Constructs an object to manage a file of records.
@@ -58,6 +61,7 @@ public class RecordFile {
          if (atLastBlock())
             return false;
          moveTo(currentblknum + 1);
+         readAhead();
       }
    }
    
@@ -101,6 +105,16 @@ public class RecordFile {
       rp.setString(fldname, val);
    }
    
+   /**
+    * Sets the values of several fields
+    * in the current record.
+    * The values are logged together, as a single update.
+    * @param vals the Integer or String values, keyed by field name
+    */
+   public void setValues(Map<String,Object> vals) {
+      rp.setValues(vals);
+   }
+   
    /**
     * Deletes the current record.
     * The client must call next() to move to
@@ -148,11 +162,29 @@ public class RecordFile {
    private void moveTo(int b) {
       if (rp != null)
          rp.close();
+      if (b <= currentblknum || b > prefetchedblknum)
+         prefetchedblknum = b;
       currentblknum = b;
       Block blk = new Block(filename, currentblknum);
       rp = new RecordPage(blk, ti, tx);
    }
    
+   /**
+    * Asks for the blocks following the current block
+    * to be read in the background.
+    * This method is called when the scan moves sequentially
+    * to the next block, and it requests only the blocks
+    * that have not already been requested.
+    */
+   private void readAhead() {
+      int last = Math.min(currentblknum + SimpleDB.PREFETCH_SIZE,
+                          tx.size(filename) - 1);
+      for (int b = prefetchedblknum + 1; b <= last; b++)
+         tx.prefetch(new Block(filename, b));
+      if (last > prefetchedblknum)
+         prefetchedblknum = last;
+   }
+   
    private boolean atLastBlock() {
       return currentblknum == tx.size(filename) - 1;
    }
@@ -32,7 +32,7 @@ class RecordFormatter implements PageFormatter {
     */
    public void format(Page page) {
       int recsize = ti.recordLength() + INT_SIZE;
-      for (int pos=0; pos+recsize<=BLOCK_SIZE; pos += recsize) {
+      for (int pos=0; pos+recsize<=blockSize(); pos += recsize) {
          page.setInt(pos, EMPTY);
          makeDefaultRecord(page, pos);
       }
@@ -3,6 +3,7 @@ package simpledb.record;
 import static simpledb.file.Page.*;
 import simpledb.file.Block;
 import simpledb.tx.Transaction;
+import java.util.*;
 
 /**
  * Manages the placement and access of records in a block.
@@ -93,6 +94,19 @@ public class RecordPage {
       tx.setString(blk, position, val);
    }
    
+   /**
+    * Stores several values in the fields
+    * of the current record.
+    * The values are logged together, as a single update.
+    * @param vals the Integer or String values, keyed by field name
+    */
+   public void setValues(Map<String,Object> vals) {
+      Map<Integer,Object> positions = new LinkedHashMap<Integer,Object>();
+      for (Map.Entry<String,Object> e : vals.entrySet())
+         positions.put(fieldpos(e.getKey()), e.getValue());
+      tx.setValues(blk, positions);
+   }
+   
    /**
     * Deletes the current record.
     * Deletion is performed by just marking the record
@@ -146,7 +160,7 @@ public class RecordPage {
    }
    
    private boolean isValidSlot() {
-      return currentpos() + slotsize <= BLOCK_SIZE;
+      return currentpos() + slotsize <= blockSize();
    }
    
    private boolean searchFor(int flag) {
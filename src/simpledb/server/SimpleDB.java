@@ -1,8 +1,10 @@
 package simpledb.server;
 
 import simpledb.file.FileMgr;
+import simpledb.file.Page;
 import simpledb.buffer.*;
 import simpledb.tx.Transaction;
+import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.log.LogMgr;
 import simpledb.metadata.MetadataMgr;
 import simpledb.planner.*;
@@ -23,14 +25,38 @@ import simpledb.index.planner.IndexUpdatePlanner;
  * @author Edward Sciore
  */
 public class SimpleDB {
+   public static int BLOCK_SIZE = Page.DEFAULT_BLOCK_SIZE; // used only when creating a database
+   public static boolean PAGE_CHECKSUMS = true; // used only when creating a database
+   public static boolean PAGE_COMPRESSION = false; // compress blocks on disk; used only when creating a database
    public static int BUFFER_SIZE = 8;
+   public static String BUFFER_POLICY = ReplacementPolicy.LRU;
+   public static long BUFFER_FLUSH_INTERVAL = 500; // milliseconds; 0 disables the flusher
+   public static int PREFETCH_SIZE = 8; // blocks read ahead of a sequential scan, up to a quarter of the available buffers; 0 disables
+   public static boolean MAPPED_READS = false; // read blocks through memory-mapped files
+   public static int EXTENT_SIZE = 8; // blocks by which a file grows when appended to; 1 disables preallocation
+   public static int MAX_OPEN_FILES = FileMgr.DEFAULT_MAX_OPEN_FILES; // files whose channels can be open at once
    public static String LOG_FILE = "simpledb.log";
+   public static int LOG_BUFFERS = LogMgr.DEFAULT_LOG_BUFFERS; // pages in the log buffer
+   public static int LOG_SEGMENT_SIZE = LogMgr.DEFAULT_SEGMENT_SIZE; // blocks in a log segment file; used only when creating the log
+   public static long CHECKPOINT_INTERVAL = 5000; // milliseconds between nonquiescent checkpoints; 0 disables
+   public static int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors(); // workers that redo and undo blocks during recovery
    
    private static FileMgr     fm;
    private static BufferMgr   bm;
    private static LogMgr      logm;
    private static MetadataMgr mdm;
    
+   /**
+    * Initializes the system, using the specified
+    * buffer replacement policy.
+    * @param dirname the name of the database directory
+    * @param bufferPolicy the name of a {@link ReplacementPolicy}
+    */
+   public static void init(String dirname, String bufferPolicy) {
+      BUFFER_POLICY = bufferPolicy;
+      init(dirname);
+   }
+   
    /**
     * Initializes the system.
     * This method is called during system startup.
@@ -48,6 +74,26 @@ public class SimpleDB {
       }
       initMetadataMgr(isnew, tx);
       tx.commit();
+      if (CHECKPOINT_INTERVAL > 0)
+         RecoveryMgr.startCheckpointer(CHECKPOINT_INTERVAL);
+   }
+   
+   /**
+    * Shuts the system down.
+    * The method stops the background threads, waiting for each
+    * to finish, and writes the modified pages to disk.
+    * It should be called when no transactions are running.
+    * The server calls it when its JVM exits
+    * (see {@link Startup}).
+    */
+   public static void shutdown() {
+      RecoveryMgr.stopCheckpointer();
+      if (bm != null)
+         bm.shutdown();
+      if (logm != null)
+         logm.shutdown();
+      if (fm != null)
+         fm.forceAll();
    }
    
    // The following initialization methods are useful for 
@@ -59,7 +105,10 @@ public class SimpleDB {
     * @param dirname the name of the database directory
     */
    public static void initFileMgr(String dirname) {
-      fm = new FileMgr(dirname);
+      fm = new FileMgr(dirname, BLOCK_SIZE, PAGE_CHECKSUMS, PAGE_COMPRESSION);
+      fm.useMappedReads(MAPPED_READS);
+      fm.setExtentSize(EXTENT_SIZE);
+      fm.setMaxOpenFiles(MAX_OPEN_FILES);
    }
    
    /**
@@ -68,7 +117,7 @@ public class SimpleDB {
     */
    public static void initFileAndLogMgr(String dirname) {
       initFileMgr(dirname);
-      logm = new LogMgr(LOG_FILE);
+      logm = new LogMgr(LOG_FILE, LOG_BUFFERS, LOG_SEGMENT_SIZE);
    }
    
    /**
@@ -77,7 +126,11 @@ public class SimpleDB {
     */
    public static void initFileLogAndBufferMgr(String dirname) {
       initFileAndLogMgr(dirname);
-      bm = new BufferMgr(BUFFER_SIZE);
+      bm = new BufferMgr(BUFFER_SIZE, BUFFER_POLICY);
+      if (BUFFER_FLUSH_INTERVAL > 0)
+         bm.startFlusher(BUFFER_FLUSH_INTERVAL);
+      if (PREFETCH_SIZE > 0)
+         bm.startPrefetcher();
    }
    
    /**
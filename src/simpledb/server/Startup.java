@@ -6,7 +6,18 @@ import java.rmi.registry.*;
 public class Startup {
    public static void main(String args[]) throws Exception {
       // configure and initialize the database
-      SimpleDB.init(args[0]);
+      if (args.length > 1)
+         SimpleDB.init(args[0], args[1]);
+      else
+         SimpleDB.init(args[0]);
+      
+      // stop the background threads and flush the log when the server exits
+      Runtime.getRuntime().addShutdownHook(new Thread("simpledb shutdown") {
+         public void run() {
+            SimpleDB.shutdown();
+            System.out.println("database server stopped");
+         }
+      });
       
       // create a registry specific for the server on the default port
       Registry reg = LocateRegistry.createRegistry(1099);
@@ -5,6 +5,7 @@ import simpledb.file.Block;
 import simpledb.buffer.*;
 import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.tx.concurrency.ConcurrencyMgr;
+import java.util.Map;
 
 /**
  * Provides transaction management for clients,
@@ -40,9 +41,11 @@ public class Transaction {
    
    /**
     * Commits the current transaction.
-    * Flushes all modified buffers (and their log records),
-    * writes and flushes a commit record to the log,
+    * Writes and flushes a commit record to the log,
     * releases all locks, and unpins any pinned buffers.
+    * The modified buffers are not flushed;
+    * they are written to disk later, and
+    * their modifications can be redone from the log.
     */
    public void commit() {
       recoveryMgr.commit();
@@ -53,8 +56,7 @@ public class Transaction {
    
    /**
     * Rolls back the current transaction.
-    * Undoes any modified values,
-    * flushes those buffers,
+    * Undoes any modified values, logging each undo,
     * writes and flushes a rollback record to the log,
     * releases all locks, and unpins any pinned buffers.
     */
@@ -97,6 +99,30 @@ public class Transaction {
       myBuffers.unpin(blk);
    }
    
+   /**
+    * Hints that the specified block will soon be pinned,
+    * so that the buffer manager can read it in the background.
+    * No lock is obtained, because the block's contents
+    * are not accessed until the block is pinned.
+    * @param blk a reference to the disk block
+    */
+   public void prefetch(Block blk) {
+      SimpleDB.bufferMgr().prefetch(blk);
+   }
+   
+   /**
+    * Writes this transaction's modified blocks of the
+    * specified file to disk.
+    * The method is useful for files, such as temporary tables,
+    * that are written in full and then read back,
+    * so that their blocks are written in large runs
+    * rather than one at a time as their buffers are replaced.
+    * @param filename the name of the file
+    */
+   public void flush(String filename) {
+      SimpleDB.bufferMgr().flushFile(txnum, filename);
+   }
+   
    /**
     * Returns the integer value stored at the
     * specified offset of the specified block.
@@ -136,6 +162,8 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer is latched throughout, so that a checkpoint
+    * cannot see the log record without seeing the buffer modified.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
@@ -143,8 +171,10 @@ public class Transaction {
    public void setInt(Block blk, int offset, int val) {
       concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setInt(buff, offset, val);
-      buff.setInt(offset, val, txnum, lsn);
+      synchronized (buff) {
+         long lsn = recoveryMgr.setInt(buff, offset, val);
+         buff.setInt(offset, val, txnum, lsn);
+      }
    }
    
    /**
@@ -156,6 +186,8 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer is latched throughout, so that a checkpoint
+    * cannot see the log record without seeing the buffer modified.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
@@ -163,8 +195,32 @@ public class Transaction {
    public void setString(Block blk, int offset, String val) {
       concurMgr.xLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setString(buff, offset, val);
-      buff.setString(offset, val, txnum, lsn);
+      synchronized (buff) {
+         long lsn = recoveryMgr.setString(buff, offset, val);
+         buff.setString(offset, val, txnum, lsn);
+      }
+   }
+   
+   /**
+    * Stores several integers and strings
+    * in the specified block.
+    * The method first obtains an XLock on the block.
+    * It then reads the current values at those offsets,
+    * and writes them to the log as a single compound update record,
+    * so that the values take one log append rather than one apiece.
+    * Finally, it calls the buffer to store the values,
+    * passing in the LSNs of the log records and the transaction's id,
+    * with the buffer latched as in {@link #setInt(Block, int, int)}.
+    * @param blk a reference to the disk block
+    * @param vals the Integer or String values to be stored, keyed by their offset within the block
+    */
+   public void setValues(Block blk, Map<Integer,Object> vals) {
+      concurMgr.xLock(blk);
+      Buffer buff = myBuffers.getBuffer(blk);
+      synchronized (buff) {
+         long[] lsns = recoveryMgr.setValues(buff, vals);
+         buff.setValues(vals, txnum, lsns[0], lsns[1]);
+      }
    }
    
    /**
@@ -194,6 +250,7 @@ public class Transaction {
       Block dummyblk = new Block(filename, END_OF_FILE);
       concurMgr.xLock(dummyblk);
       Block blk = myBuffers.pinNew(filename, fmtr);
+      recoveryMgr.appended(filename);
       unpin(blk);
       return blk;
    }
@@ -1,5 +1,6 @@
 package simpledb.tx.recovery;
 
+import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
 
 /**
@@ -26,7 +27,7 @@ class CheckpointRecord implements LogRecord {
     * and nothing else.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {CHECKPOINT};
       return logMgr.append(rec);
    }
@@ -43,12 +44,51 @@ class CheckpointRecord implements LogRecord {
       return -1; // dummy value
    }
    
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative LSN.
+    */
+   public long prevLSN() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns a "dummy", negative LSN, because
+    * only a compensation record has an undo-next LSN.
+    */
+   public long undoNextLSN() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * A checkpoint record modifies no block,
+    * and so the method returns null.
+    */
+   public Block block() {
+      return null;
+   }
+   
    /**
     * Does nothing, because a checkpoint record
     * contains no undo information.
     */
    public void undo(int txnum) {}
    
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+   
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information,
+    * and returns the specified LSN.
+    */
+   public long compensate(int txnum, long prevLSN) {
+      return prevLSN;
+   }
+   
    public String toString() {
       return "<CHECKPOINT>";
    }
@@ -0,0 +1,65 @@
+package simpledb.tx.recovery;
+
+/**
+ * A daemon thread that periodically writes a
+ * nonquiescent checkpoint record to the log,
+ * so that the portion of the log examined by recovery
+ * does not grow with the time the system has been running.
+ * The checkpointer is stopped by {@link #shutdown()}; it is not interrupted,
+ * because an interrupt would close the channel of a file it is forcing.
+ * A checkpoint that fails is reported, and the checkpointer
+ * tries again at the next period.
+ */
+class Checkpointer extends Thread {
+   private long interval;
+   private Object lock = new Object();
+   private boolean stopped = false;  // guarded by lock
+
+   /**
+    * Creates a checkpointer.
+    * @param interval the number of milliseconds between checkpoints
+    */
+   Checkpointer(long interval) {
+      super("checkpointer");
+      this.interval = interval;
+      setDaemon(true);
+   }
+
+   /**
+    * Stops the checkpointer, and waits for it to finish its current checkpoint.
+    */
+   void shutdown() {
+      synchronized (lock) {
+         stopped = true;
+         lock.notifyAll();
+      }
+      try {
+         join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   public void run() {
+      try {
+         while (true) {
+            synchronized (lock) {
+               if (!stopped)
+                  lock.wait(interval);
+               if (stopped)
+                  return;
+            }
+            try {
+               RecoveryMgr.checkpoint();
+            }
+            catch (RuntimeException e) {
+               System.out.println("checkpoint failed: " + e.getMessage());
+            }
+         }
+      }
+      catch (InterruptedException e) {
+         // the checkpointer was stopped
+      }
+   }
+}
@@ -1,5 +1,6 @@
 package simpledb.tx.recovery;
 
+import simpledb.file.Block;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
@@ -9,11 +10,12 @@ import simpledb.server.SimpleDB;
  */
 public interface LogRecord {
    /**
-    * The six different types of log record
+    * The eight different types of log record
     */
    static final int CHECKPOINT = 0, START = 1,
       COMMIT = 2, ROLLBACK  = 3,
-      SETINT = 4, SETSTRING = 5;
+      SETINT = 4, SETSTRING = 5,
+      SETVALUES = 6, NQCKPT = 7;
    
    static final LogMgr logMgr = SimpleDB.logMgr();
    
@@ -21,7 +23,7 @@ public interface LogRecord {
     * Writes the record to the log and returns its LSN.
     * @return the LSN of the record in the log
     */
-   int writeToLog();
+   long writeToLog();
    
    /**
     * Returns the log record's type. 
@@ -36,11 +38,68 @@ public interface LogRecord {
     */
    int txNumber();
    
+   /**
+    * Returns the LSN of the previous log record
+    * written by the record's transaction.
+    * These LSNs chain each transaction's update records
+    * back to its START record, so that a rollback reads only
+    * the records of its own transaction.
+    * @return the LSN of the previous record of the transaction, or -1 if there is none
+    */
+   long prevLSN();
+   
+   /**
+    * Returns the undo-next LSN of a compensation record,
+    * which is the LSN of the next record of its transaction
+    * that remains to be undone: the record preceding the one
+    * that the compensation record undid.
+    * A rollback or recovery that reaches a compensation record
+    * continues from this LSN, so that no update is undone twice.
+    * @return the undo-next LSN, or -1 if the record is not a compensation record
+    */
+   long undoNextLSN();
+   
+   /**
+    * Returns the block modified by the log record.
+    * Recovery uses the block to partition the records
+    * among its workers.
+    * @return the modified block, or null if the record modifies none
+    */
+   Block block();
+   
    /**
     * Undoes the operation encoded by this log record.
     * The only log record types for which this method
-    * does anything interesting are SETINT and SETSTRING.
+    * does anything interesting are SETINT, SETSTRING and SETVALUES.
+    * The undo is not logged; it is used during recovery,
+    * which ends by flushing the restored buffers.
     * @param txnum the id of the transaction that is performing the undo.
     */
    void undo(int txnum);
+   
+   /**
+    * Redoes the operation encoded by this log record,
+    * by storing the new values saved in the record,
+    * unless the page already holds them:
+    * a page whose saved LSN is at least the record's LSN
+    * was written to disk after the modification.
+    * The redo sets the page LSN to the record's LSN.
+    * The only log record types for which this method
+    * does anything interesting are SETINT, SETSTRING and SETVALUES.
+    * @param txnum the id of the transaction that is performing the redo.
+    * @param lsn the LSN of this log record
+    */
+   void redo(int txnum, long lsn);
+   
+   /**
+    * Undoes the operation encoded by this log record
+    * on behalf of a rolling-back transaction, and logs the undo
+    * as a compensation record chained to the specified LSN,
+    * whose undo-next LSN is the previous LSN of this record.
+    * Records that have nothing to undo return the specified LSN.
+    * @param txnum the id of the transaction that is rolling back
+    * @param prevLSN the LSN of the transaction's most recent log record
+    * @return the LSN of the compensation record
+    */
+   long compensate(int txnum, long prevLSN);
 }
\ No newline at end of file
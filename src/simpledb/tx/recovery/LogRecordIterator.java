@@ -7,14 +7,33 @@ import simpledb.server.SimpleDB;
 
 /**
  * A class that provides the ability to read records
- * from the log in reverse order.
+ * from the log in reverse order,
+ * or in forward order from a given LSN.
  * Unlike the similar class 
  * {@link simpledb.log.LogIterator LogIterator},  
  * this class understands the meaning of the log records.
  * @author Edward Sciore
  */
 class LogRecordIterator implements Iterator<LogRecord> {
-   private Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
+   private Iterator<BasicLogRecord> iter;
+   private long currentLSN = -1;
+   
+   /**
+    * Creates an iterator for the log records in reverse order,
+    * starting with the most recent.
+    */
+   public LogRecordIterator() {
+      iter = SimpleDB.logMgr().iterator();
+   }
+   
+   /**
+    * Creates an iterator for the log records in forward order,
+    * starting with the first record whose LSN is at least the specified one.
+    * @param lsn the LSN at which to start
+    */
+   public LogRecordIterator(long lsn) {
+      iter = SimpleDB.logMgr().iterator(lsn);
+   }
    
    public boolean hasNext() {
       return iter.hasNext();
@@ -31,6 +50,25 @@ class LogRecordIterator implements Iterator<LogRecord> {
     */
    public LogRecord next() {
       BasicLogRecord rec = iter.next();
+      currentLSN = rec.lsn();
+      return createLogRecord(rec);
+   }
+   
+   /**
+    * Returns the LSN of the log record most recently returned by next().
+    * @return the LSN of the current log record
+    */
+   public long currentLSN() {
+      return currentLSN;
+   }
+   
+   /**
+    * Constructs a log record from the values of
+    * the specified basic log record.
+    * @param rec the basic log record
+    * @return the corresponding log record, or null if its type is unknown
+    */
+   static LogRecord createLogRecord(BasicLogRecord rec) {
       int op = rec.nextInt();
       switch (op) {
          case CHECKPOINT:
@@ -45,10 +83,14 @@ class LogRecordIterator implements Iterator<LogRecord> {
             return new SetIntRecord(rec);
          case SETSTRING:
             return new SetStringRecord(rec);
+         case SETVALUES:
+            return new SetValuesRecord(rec);
+         case NQCKPT:
+            return new NQCheckpointRecord(rec);
          default:
             return null;
       }
-   } 
+   }
    
    public void remove() {
       throw new UnsupportedOperationException();
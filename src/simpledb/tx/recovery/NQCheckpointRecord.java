@@ -0,0 +1,192 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+import simpledb.log.*;
+import java.util.*;
+
+/**
+ * The NQCKPT log record, which denotes a nonquiescent checkpoint.
+ * The record lists the transactions that were active
+ * when it was written, and the LSN from which
+ * recovery must redo the log: the oldest LSN whose
+ * modification may not yet have reached the disk.
+ * Recovery that reaches the record need only continue
+ * back to the START records of those transactions.
+ * <p>
+ * If there are too many active transactions to list in one record,
+ * the list is split among several records, each of which
+ * saves the LSN of the one before it.
+ * Only the last of them is the checkpoint;
+ * the earlier ones are parts of it, which have a negative redo LSN
+ * and are ignored by recovery if the last one was never written.
+ */
+class NQCheckpointRecord implements LogRecord {
+   private Collection<Integer> txnums;
+   private long redoLSN, prevPartLSN;
+
+   /**
+    * Creates a nonquiescent checkpoint record
+    * for the specified active transactions.
+    * @param txnums the IDs of the active transactions
+    * @param redoLSN the LSN from which recovery must redo the log, or -1 for a part of a checkpoint
+    * @param prevPartLSN the LSN of the previous part of the checkpoint, or -1 if none
+    */
+   public NQCheckpointRecord(Collection<Integer> txnums, long redoLSN, long prevPartLSN) {
+      this.txnums = txnums;
+      this.redoLSN = redoLSN;
+      this.prevPartLSN = prevPartLSN;
+   }
+
+   /**
+    * Creates a log record by reading the redo LSN,
+    * the LSN of the previous part, the number of
+    * active transactions and their IDs from the log.
+    * @param rec the basic log record
+    */
+   public NQCheckpointRecord(BasicLogRecord rec) {
+      redoLSN = rec.nextLong();
+      prevPartLSN = rec.nextLong();
+      int count = rec.nextInt();
+      txnums = new ArrayList<Integer>();
+      for (int i=0; i<count; i++)
+         txnums.add(rec.nextInt());
+   }
+
+   /**
+    * Writes the nonquiescent checkpoint records for the specified
+    * active transactions to the log.
+    * The transactions are split among as many records
+    * as needed for each record to fit into a log block,
+    * each record saving the LSN of the one before it;
+    * only the last record has the redo LSN.
+    * @param txnums the IDs of the active transactions
+    * @param redoLSN the LSN from which recovery must redo the log
+    * @return the LSN of the last record, which is the checkpoint
+    */
+   static long writeToLog(Collection<Integer> txnums, long redoLSN) {
+      int header = LogMgr.size(NQCKPT) + 2 * LogMgr.size(redoLSN) + LogMgr.size(txnums.size());
+      int max = (LogMgr.maxRecordSize() - header) / LogMgr.size(0);
+      List<Integer> txs = new ArrayList<Integer>(txnums);
+      long prev = -1;
+      while (txs.size() > max) {
+         List<Integer> part = txs.subList(0, max);
+         prev = new NQCheckpointRecord(new ArrayList<Integer>(part), -1, prev).writeToLog();
+         part.clear();
+      }
+      return new NQCheckpointRecord(txs, redoLSN, prev).writeToLog();
+   }
+
+   /**
+    * Writes a nonquiescent checkpoint record to the log.
+    * This log record contains the NQCKPT operator,
+    * followed by the redo LSN, the LSN of the previous part,
+    * the number of active transactions and their IDs.
+    * @return the LSN of the record
+    */
+   public long writeToLog() {
+      List<Object> rec = new ArrayList<Object>();
+      rec.add(NQCKPT);
+      rec.add(redoLSN);
+      rec.add(prevPartLSN);
+      rec.add(txnums.size());
+      rec.addAll(txnums);
+      return logMgr.append(rec.toArray());
+   }
+
+   public int op() {
+      return NQCKPT;
+   }
+
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative LSN.
+    */
+   public long prevLSN() {
+      return -1; // dummy value
+   }
+
+   /**
+    * Returns a "dummy", negative LSN, because
+    * only a compensation record has an undo-next LSN.
+    */
+   public long undoNextLSN() {
+      return -1; // dummy value
+   }
+
+   /**
+    * A checkpoint record modifies no block,
+    * and so the method returns null.
+    */
+   public Block block() {
+      return null;
+   }
+
+   /**
+    * Returns the IDs of the transactions that were
+    * active when the checkpoint was taken.
+    * @return the IDs of the active transactions
+    */
+   public Collection<Integer> activeTxs() {
+      return txnums;
+   }
+
+   /**
+    * Returns the LSN from which recovery must redo the log.
+    * Every modification logged before it
+    * had been written to disk when the checkpoint was taken.
+    * @return the redo LSN, or -1 if the record is a part of a checkpoint
+    */
+   public long redoLSN() {
+      return redoLSN;
+   }
+
+   /**
+    * Returns true if the record is a part of a checkpoint
+    * that lists the transactions that did not fit into the last record.
+    * @return true if the record is not itself a checkpoint
+    */
+   public boolean isPart() {
+      return redoLSN < 0;
+   }
+
+   /**
+    * Returns the LSN of the previous part of the checkpoint.
+    * @return the LSN of the previous part, or -1 if there is none
+    */
+   public long prevPartLSN() {
+      return prevPartLSN;
+   }
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information,
+    * and returns the specified LSN.
+    */
+   public long compensate(int txnum, long prevLSN) {
+      return prevLSN;
+   }
+
+   public String toString() {
+      return "<NQCKPT " + redoLSN + " " + prevPartLSN + " " + txnums + ">";
+   }
+}
@@ -3,15 +3,44 @@ package simpledb.tx.recovery;
 import static simpledb.tx.recovery.LogRecord.*;
 import simpledb.file.Block;
 import simpledb.buffer.Buffer;
+import simpledb.log.LogReader;
 import simpledb.server.SimpleDB;
 import java.util.*;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * <p>
+ * Each update record saves both the previous and the new value,
+ * so that the log can be used to redo committed modifications
+ * as well as to undo uncommitted ones.
+ * A transaction's modified buffers therefore need not be written
+ * when it commits: only the log is forced, and the buffers
+ * are written later, when they are replaced or flushed
+ * in the background.
+ * Each buffer keeps the LSN of its earliest unwritten modification,
+ * which tells a checkpoint where recovery must start redoing the log.
+ * Recovery runs in three passes: an analysis pass that reads the log back
+ * to the last checkpoint, a redo pass that repeats the logged
+ * modifications from the checkpoint's redo LSN, and an undo pass
+ * that rolls back the transactions that did not finish.
+ * <p>
+ * The recovery managers keep the set of active transactions,
+ * so that a nonquiescent checkpoint can be taken
+ * while transactions are running
+ * (see {@link #checkpoint()}).
+ * They also keep the LSN of each active transaction's START record,
+ * so that after a checkpoint the log can be truncated
+ * before the oldest record that a rollback or recovery could need.
  * @author Edward Sciore
  */
 public class RecoveryMgr {
+   // the START LSNs of the active transactions; also the lock that orders START records with checkpoints
+   private static Map<Integer,Long> activeTxs = new HashMap<Integer,Long>();
+   private static long lastCheckpoint = -1; // guarded by activeTxs
+   private static Checkpointer checkpointer = null;
    private int txnum;
+   private long lastLSN;  // the LSN of the transaction's most recent log record
+   private Set<String> appendedFiles = new HashSet<String>();
 
    /**
     * Creates a recovery manager for the specified transaction.
@@ -19,38 +48,130 @@ public class RecoveryMgr {
     */
    public RecoveryMgr(int txnum) {
       this.txnum = txnum;
-      new StartRecord(txnum).writeToLog();
+      synchronized (activeTxs) {
+         lastLSN = new StartRecord(txnum).writeToLog();
+         activeTxs.put(txnum, lastLSN);
+      }
+   }
+
+   /**
+    * Starts a daemon thread that takes a nonquiescent
+    * checkpoint at the specified interval.
+    * The method does nothing if the checkpointer is already running.
+    * @param interval the number of milliseconds between checkpoints
+    */
+   public static synchronized void startCheckpointer(long interval) {
+      if (checkpointer == null) {
+         checkpointer = new Checkpointer(interval);
+         checkpointer.start();
+      }
+   }
+
+   /**
+    * Stops the checkpointer, if it is running,
+    * and waits for it to finish its current checkpoint.
+    * This method is called by {@link simpledb.server.SimpleDB#shutdown()}.
+    */
+   public static synchronized void stopCheckpointer() {
+      if (checkpointer != null) {
+         checkpointer.shutdown();
+         checkpointer = null;
+      }
+   }
+
+   /**
+    * Writes a nonquiescent checkpoint record to the log,
+    * listing the currently active transactions.
+    * No buffers are flushed.  Instead, the record saves
+    * the smallest recovery LSN of the buffers, from which
+    * recovery must redo the log; the database files are
+    * forced first, so that the buffers written before it
+    * are on disk.
+    * Recovery from a later crash need only undo the records
+    * of the listed transactions (and of transactions
+    * that start after the checkpoint).
+    * The checkpoint is skipped if nothing has been logged
+    * since the previous one.
+    * If the active transactions are too many to list in
+    * one log record, they are split among several
+    * (see {@link NQCheckpointRecord}).
+    * The record is then flushed, and the log is truncated
+    * before the START record of the oldest listed transaction
+    * or the redo LSN, whichever is older.
+    */
+   public static void checkpoint() {
+      long bound = SimpleDB.logMgr().lastLSN() + 1;
+      long redoLSN = SimpleDB.bufferMgr().recoveryLSN(bound);
+      SimpleDB.fileMgr().forceAll();
+      long lsn, oldest;
+      synchronized (activeTxs) {
+         if (SimpleDB.logMgr().lastLSN() == lastCheckpoint)
+            return;
+         lsn = NQCheckpointRecord.writeToLog(activeTxs.keySet(), redoLSN);
+         lastCheckpoint = lsn;
+         oldest = Math.min(oldestNeeded(lsn), redoLSN);
+      }
+      SimpleDB.logMgr().flush(lsn);
+      SimpleDB.logMgr().truncate(oldest);
    }
 
    /**
     * Writes a commit record to the log, and flushes it to disk.
+    * The transaction's modified buffers are not written:
+    * their modifications can be redone from the log.
+    * Only the files to which the transaction appended blocks
+    * are forced first, because the formatting of a new block
+    * is not logged.
     */
    public void commit() {
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CommitRecord(txnum).writeToLog();
+      forceAppendedFiles();
+      long lsn = new CommitRecord(txnum).writeToLog();
+      finished();
+      SimpleDB.bufferMgr().forget(txnum);
       SimpleDB.logMgr().flush(lsn);
    }
 
    /**
-    * Writes a rollback record to the log, and flushes it to disk.
+    * Rolls back the transaction,
+    * writes a rollback record to the log, and flushes it to disk.
+    * As with commit, the modified buffers are not written.
     */
    public void rollback() {
       doRollback();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new RollbackRecord(txnum).writeToLog();
+      forceAppendedFiles();
+      long lsn = new RollbackRecord(txnum).writeToLog();
+      finished();
+      SimpleDB.bufferMgr().forget(txnum);
       SimpleDB.logMgr().flush(lsn);
    }
 
    /**
     * Recovers uncompleted transactions from the log,
     * then writes a quiescent checkpoint record to the log and flushes it.
+    * The log before the checkpoint is then truncated.
     */
    public void recover() {
       doRecover();
       SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CheckpointRecord().writeToLog();
+      SimpleDB.fileMgr().forceAll();
+      long lsn = new CheckpointRecord().writeToLog();
       SimpleDB.logMgr().flush(lsn);
+      long oldest;
+      synchronized (activeTxs) {
+         oldest = oldestNeeded(lsn);
+      }
+      SimpleDB.logMgr().truncate(oldest);
+   }
 
+   /**
+    * Notes that the transaction appended a block to the specified file,
+    * so that the file is forced when the transaction finishes.
+    * Temporary files are ignored.
+    * @param filename the name of the file
+    */
+   public void appended(String filename) {
+      if (!filename.startsWith("temp"))
+         appendedFiles.add(filename);
    }
 
    /**
@@ -61,13 +182,13 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.getInt(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
-      else
-         return new SetIntRecord(txnum, blk, offset, oldval).writeToLog();
+      lastLSN = new SetIntRecord(txnum, lastLSN, -1, blk, offset, oldval, newval).writeToLog();
+      return lastLSN;
    }
 
    /**
@@ -78,56 +199,244 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.getString(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
-      else
-         return new SetStringRecord(txnum, blk, offset, oldval).writeToLog();
+      lastLSN = new SetStringRecord(txnum, lastLSN, -1, blk, offset, oldval, newval).writeToLog();
+      return lastLSN;
+   }
+
+   /**
+    * Writes the setvalues records for several values
+    * of a page to the log, and returns the LSNs of the first and last ones.
+    * All of the previous and new values are saved in as few
+    * log records as possible, which are appended at once.
+    * The buffer needs both LSNs: recovery must redo the page
+    * from the first record, and the page is up to date with the last.
+    * Updates to temporary files are not logged; instead,
+    * "dummy" negative lsns are returned.
+    * @param buff the buffer containing the page
+    * @param newvals the values to be written, keyed by their offset in the page
+    * @return the LSNs of the first and last records
+    */
+   public long[] setValues(Buffer buff, Map<Integer,Object> newvals) {
+      Block blk = buff.block();
+      if (isTempBlock(blk))
+         return new long[] {-1, -1};
+      Map<Integer,Object> oldvals = new LinkedHashMap<Integer,Object>();
+      for (Map.Entry<Integer,Object> e : newvals.entrySet()) {
+         int offset = e.getKey();
+         if (e.getValue() instanceof String)
+            oldvals.put(offset, buff.getString(offset));
+         else
+            oldvals.put(offset, buff.getInt(offset));
+      }
+      long[] lsns = SetValuesRecord.writeToLog(txnum, lastLSN, -1, blk, oldvals, newvals);
+      lastLSN = lsns[1];
+      return lsns;
    }
 
    /**
     * Rolls back the transaction.
-    * The method iterates through the log records,
-    * calling undo() for each log record it finds
-    * for the transaction,
-    * until it finds the transaction's START record.
+    * The method follows the chain of the transaction's
+    * log records backwards from its most recent one,
+    * calling compensate() for each record,
+    * until it reaches the transaction's START record.
+    * Each undo is logged as a compensation record,
+    * so that it can be redone if the system crashes
+    * before the buffer is written.
+    * A compensation record is not itself undone;
+    * the chain continues from its undo-next LSN.
+    * The records of other transactions are not read.
     */
    private void doRollback() {
-      Iterator<LogRecord> iter = new LogRecordIterator();
-      while (iter.hasNext()) {
-         LogRecord rec = iter.next();
-         if (rec.txNumber() == txnum) {
-            if (rec.op() == START)
-               return;
-            rec.undo(txnum);
+      LogReader reader = SimpleDB.logMgr().reader();
+      long lsn = lastLSN;
+      while (true) {
+         LogRecord rec = LogRecordIterator.createLogRecord(reader.record(lsn));
+         if (rec.op() == START)
+            return;
+         if (rec.undoNextLSN() >= 0)
+            lsn = rec.undoNextLSN();
+         else {
+            lastLSN = rec.compensate(txnum, lastLSN);
+            lsn = rec.prevLSN();
          }
       }
    }
 
    /**
     * Does a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
-    * or the end of the log.
+    * The analysis pass reads the log backwards until it
+    * reaches a checkpoint record, collecting the transactions
+    * that have log records but did not commit or roll back,
+    * together with the LSN of the most recent record of each.
+    * A CHECKPOINT record is its own redo LSN; an NQCKPT record
+    * saves the redo LSN, and its unfinished transactions
+    * are added to those collected; for a listed transaction
+    * with no later records, the pass continues back to its most recent one.
+    * The redo pass then reads the log forwards from the redo LSN,
+    * calling redo() for every record, which restores the
+    * buffers to their state at the time of the crash;
+    * a record whose LSN is not greater than the page LSN
+    * of its block is already on disk, and is skipped.
+    * Finally, the undo pass follows the chains of the
+    * unfinished transactions backwards, always reading the
+    * record with the largest LSN next, so that the records of all of them
+    * are undone in reverse log order.
+    * It calls undo() for each update record,
+    * and skips over a compensation record to its undo-next LSN,
+    * as the update that the record compensated has already been undone.
+    * A chain ends at the transaction's START record.
+    * <p>
+    * The log is read by a single thread, but the records
+    * are redone and undone by a pool of {@link RecoveryWorker workers},
+    * partitioned by block.  Because the records of a block
+    * all go to the same worker, each block's records
+    * are redone and then undone in log order,
+    * and the undo pass need not wait for the redo pass to finish.
     */
    private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<Integer>();
-      Iterator<LogRecord> iter = new LogRecordIterator();
+      Collection<Integer> finishedTxs = new HashSet<Integer>();
+      Map<Integer,Long> unfinishedTxs = new HashMap<Integer,Long>();  // the LSN of each one's last record
+      Collection<Integer> listedTxs = new HashSet<Integer>();  // listed by the checkpoint, last record not yet found
+      long redoLSN = 0;
+      boolean pastCheckpoint = false;
+      LogRecordIterator iter = new LogRecordIterator();
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
-         if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
-            finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
-            rec.undo(txnum);
+         int tx = rec.txNumber();
+         if (pastCheckpoint) {
+            // only the most recent records of the listed transactions matter
+            if (listedTxs.remove(tx))
+               unfinishedTxs.put(tx, iter.currentLSN());
+         }
+         else if (rec.op() == CHECKPOINT) {
+            redoLSN = iter.currentLSN();
+            break;
+         }
+         else if (rec.op() == NQCKPT) {
+            NQCheckpointRecord ckpt = (NQCheckpointRecord) rec;
+            if (ckpt.isPart())
+               continue;  // a part of a checkpoint whose last record was not written
+            redoLSN = ckpt.redoLSN();
+            LogReader reader = SimpleDB.logMgr().reader();
+            while (true) {
+               for (int listed : ckpt.activeTxs())
+                  if (!finishedTxs.contains(listed) && !unfinishedTxs.containsKey(listed))
+                     listedTxs.add(listed);
+               if (ckpt.prevPartLSN() < 0)
+                  break;
+               ckpt = (NQCheckpointRecord) LogRecordIterator.createLogRecord(reader.record(ckpt.prevPartLSN()));
+            }
+            pastCheckpoint = true;
+         }
+         else if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+            finishedTxs.add(tx);
+         else if (!finishedTxs.contains(tx) && !unfinishedTxs.containsKey(tx))
+            unfinishedTxs.put(tx, iter.currentLSN());
+         if (pastCheckpoint && listedTxs.isEmpty())
+            break;
+      }
+
+      RecoveryWorker[] workers = createWorkers();
+      boolean done = false;
+      try {
+         iter = new LogRecordIterator(redoLSN);
+         while (iter.hasNext()) {
+            LogRecord rec = iter.next();
+            if (rec.block() != null)
+               workerFor(workers, rec.block()).redo(rec, iter.currentLSN());
+         }
+
+         // the next record to undo of each unfinished transaction, keyed by LSN
+         TreeMap<Long,Integer> toUndo = new TreeMap<Long,Integer>();
+         for (Map.Entry<Integer,Long> e : unfinishedTxs.entrySet())
+            toUndo.put(e.getValue(), e.getKey());
+         LogReader reader = SimpleDB.logMgr().reader();
+         while (!toUndo.isEmpty()) {
+            Map.Entry<Long,Integer> e = toUndo.pollLastEntry();
+            LogRecord rec = LogRecordIterator.createLogRecord(reader.record(e.getKey()));
+            if (rec.op() == START)
+               continue;
+            if (rec.undoNextLSN() >= 0)
+               toUndo.put(rec.undoNextLSN(), e.getValue());
+            else {
+               if (rec.block() != null)
+                  workerFor(workers, rec.block()).undo(rec);
+               toUndo.put(rec.prevLSN(), e.getValue());
+            }
+         }
+         done = true;
+      }
+      finally {
+         // stop every worker before reporting a failure;
+         // an exception of the log reading takes precedence
+         RuntimeException failure = null;
+         for (RecoveryWorker worker : workers) {
+            RuntimeException e = worker.finish();
+            if (failure == null)
+               failure = e;
+         }
+         if (done && failure != null)
+            throw failure;
+      }
+   }
+
+   /**
+    * Creates the recovery workers.
+    * There are no more workers than available buffers,
+    * because each worker pins one buffer at a time.
+    */
+   private RecoveryWorker[] createWorkers() {
+      int count = Math.min(SimpleDB.RECOVERY_THREADS, SimpleDB.bufferMgr().available());
+      RecoveryWorker[] workers = new RecoveryWorker[Math.max(count, 1)];
+      for (int i=0; i<workers.length; i++)
+         workers[i] = new RecoveryWorker(txnum, i);
+      return workers;
+   }
+
+   /**
+    * Returns the worker that handles the records of the specified block.
+    */
+   private RecoveryWorker workerFor(RecoveryWorker[] workers, Block blk) {
+      return workers[(blk.hashCode() & Integer.MAX_VALUE) % workers.length];
+   }
+
+   /**
+    * Returns the LSN of the oldest log record that may still
+    * be needed, given a checkpoint having the specified LSN:
+    * either the checkpoint or the START record of
+    * an active transaction, whichever is older.
+    * The caller must hold the lock on the active transactions.
+    */
+   private static long oldestNeeded(long lsn) {
+      for (long start : activeTxs.values())
+         lsn = Math.min(lsn, start);
+      return lsn;
+   }
+
+   /**
+    * Removes the transaction from the set of active transactions,
+    * after its COMMIT or ROLLBACK record has been written.
+    */
+   private void finished() {
+      synchronized (activeTxs) {
+         activeTxs.remove(txnum);
       }
    }
 
+   /**
+    * Forces the files to which the transaction appended blocks.
+    */
+   private void forceAppendedFiles() {
+      for (String filename : appendedFiles)
+         SimpleDB.fileMgr().force(filename);
+      appendedFiles.clear();
+   }
+
    /**
     * Determines whether a block comes from a temporary file or not.
     */
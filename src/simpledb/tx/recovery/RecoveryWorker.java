@@ -0,0 +1,131 @@
+package simpledb.tx.recovery;
+
+import java.util.concurrent.*;
+
+/**
+ * A thread that redoes and undoes log records during recovery.
+ * Recovery partitions the log records by the block they modify,
+ * and gives all of the records of a block to the same worker,
+ * which applies them in the order it receives them.
+ * Records of different blocks modify different pages,
+ * and so the workers can apply them in parallel,
+ * overlapping the reads of the blocks.
+ */
+class RecoveryWorker extends Thread {
+   private static final int MAX_STEPS = 1024;
+   private BlockingQueue<Step> steps = new LinkedBlockingQueue<Step>(MAX_STEPS);
+   private int txnum;
+   private RuntimeException failure = null;
+
+   /**
+    * Creates and starts a recovery worker.
+    * @param txnum the id of the transaction performing the recovery
+    * @param id the number of the worker, used to name its thread
+    */
+   RecoveryWorker(int txnum, int id) {
+      super("recovery worker " + id);
+      this.txnum = txnum;
+      setDaemon(true);
+      start();
+   }
+
+   /**
+    * Asks the worker to redo the specified log record.
+    * The method waits if too many steps are outstanding.
+    * @param rec the log record
+    * @param lsn the LSN of the log record
+    */
+   void redo(LogRecord rec, long lsn) {
+      put(new Step(rec, lsn));
+   }
+
+   /**
+    * Asks the worker to undo the specified log record.
+    * The method waits if too many steps are outstanding.
+    * @param rec the log record
+    */
+   void undo(LogRecord rec) {
+      put(new Step(rec, -1));
+   }
+
+   /**
+    * Waits for the worker to apply all of its steps,
+    * and then stops it.
+    * The method always waits for the worker to stop, even if
+    * the calling thread is interrupted, in which case
+    * the thread's interrupt status is set again on return.
+    * @return the exception of the step that failed, or null if none did
+    */
+   RuntimeException finish() {
+      boolean interrupted = false;
+      Step stop = new Step(null, -1);
+      while (true) {
+         try {
+            steps.put(stop);
+            break;
+         }
+         catch (InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      while (isAlive()) {
+         try {
+            join();
+         }
+         catch (InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+      return failure;
+   }
+
+   public void run() {
+      try {
+         while (true) {
+            Step step = steps.take();
+            if (step.rec == null)
+               return;
+            if (failure != null)
+               continue;  // drain the queue, so that the recovery does not wait forever
+            try {
+               if (step.lsn >= 0)
+                  step.rec.redo(txnum, step.lsn);
+               else
+                  step.rec.undo(txnum);
+            }
+            catch (RuntimeException e) {
+               failure = e;
+            }
+         }
+      }
+      catch (InterruptedException e) {
+         failure = new RuntimeException("cannot recover");
+      }
+   }
+
+   private void put(Step step) {
+      try {
+         steps.put(step);
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("cannot recover");
+      }
+   }
+
+   /**
+    * A log record to be redone, with its LSN,
+    * or to be undone, with a negative LSN.
+    * A null record tells the worker to stop.
+    */
+   private static class Step {
+      LogRecord rec;
+      long lsn;
+
+      Step(LogRecord rec, long lsn) {
+         this.rec = rec;
+         this.lsn = lsn;
+      }
+   }
+}
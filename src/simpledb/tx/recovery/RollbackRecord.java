@@ -1,5 +1,6 @@
 package simpledb.tx.recovery;
 
+import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
 
 /**
@@ -31,7 +32,7 @@ class RollbackRecord implements LogRecord {
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {ROLLBACK, txnum};
       return logMgr.append(rec);
    }
@@ -44,12 +45,52 @@ class RollbackRecord implements LogRecord {
       return txnum;
    }
    
+   /**
+    * Rollback records are not chained to the
+    * transaction's other records, and so the method
+    * returns a "dummy", negative LSN.
+    */
+   public long prevLSN() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns a "dummy", negative LSN, because
+    * only a compensation record has an undo-next LSN.
+    */
+   public long undoNextLSN() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * A rollback record modifies no block,
+    * and so the method returns null.
+    */
+   public Block block() {
+      return null;
+   }
+   
    /**
     * Does nothing, because a rollback record
     * contains no undo information.
     */
    public void undo(int txnum) {}
    
+   /**
+    * Does nothing, because a rollback record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+   
+   /**
+    * Does nothing, because a rollback record
+    * contains no undo information,
+    * and returns the specified LSN.
+    */
+   public long compensate(int txnum, long prevLSN) {
+      return prevLSN;
+   }
+   
    public String toString() {
       return "<ROLLBACK " + txnum + ">";
    }
@@ -6,47 +6,58 @@ import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
 
 class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+   private int txnum, offset, oldval, newval;
    private Block blk;
+   private long prevLSN, undoNextLSN;
 
    /**
     * Creates a new setint log record.
     * @param txnum the ID of the specified transaction
+    * @param prevLSN the LSN of the transaction's previous log record
+    * @param undoNextLSN for a compensation record, the LSN of the next record to undo; otherwise -1
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the previous value
+    * @param newval the new value
     */
-   public SetIntRecord(int txnum, Block blk, int offset, int val) {
+   public SetIntRecord(int txnum, long prevLSN, long undoNextLSN, Block blk, int offset, int oldval, int newval) {
       this.txnum = txnum;
+      this.prevLSN = prevLSN;
+      this.undoNextLSN = undoNextLSN;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
    }
 
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading eight other values from the log.
     * @param rec the basic log record
     */
    public SetIntRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
+      prevLSN = rec.nextLong();
+      undoNextLSN = rec.nextLong();
       String filename = rec.nextString();
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextInt();
+      oldval = rec.nextInt();
+      newval = rec.nextInt();
    }
 
    /**
     * Writes a setInt record to the log.
     * This log record contains the SETINT operator,
-    * followed by the transaction id, the filename, number,
+    * followed by the transaction id, the LSN of the
+    * transaction's previous record, the undo-next LSN, the filename, number,
     * and offset of the modified block, and the previous
-    * integer value at that offset.
+    * and new integer values at that offset.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETINT, txnum, blk.fileName(),
-         blk.number(), offset, val};
+   public long writeToLog() {
+      Object[] rec = new Object[] {SETINT, txnum, prevLSN, undoNextLSN, blk.fileName(),
+         blk.number(), offset, oldval, newval};
       return logMgr.append(rec);
    }
 
@@ -57,9 +68,21 @@ class SetIntRecord implements LogRecord {
    public int txNumber() {
       return txnum;
    }
+   
+   public long prevLSN() {
+      return prevLSN;
+   }
+   
+   public long undoNextLSN() {
+      return undoNextLSN;
+   }
+
+   public Block block() {
+      return blk;
+   }
 
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + ">";
    }
 
    /**
@@ -72,7 +95,48 @@ class SetIntRecord implements LogRecord {
    public void undo(int txnum) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setInt(offset, val, txnum, -1);
+      buff.setInt(offset, oldval, txnum, -1);
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Stores the new value saved in the log record,
+    * unless the page LSN shows that the page already holds it.
+    * The method pins a buffer to the specified block,
+    * calls setInt to store the value with the LSN
+    * of the log record, and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
+    */
+   public void redo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      synchronized (buff) {
+         if (lsn > buff.pageLSN())
+            buff.setInt(offset, newval, txnum, lsn);
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Restores the previous value saved in the log record,
+    * logging the change as a compensation record.
+    * The compensation record is an ordinary setint record,
+    * which restores the value when it is redone,
+    * with the previous LSN of this record as its undo-next LSN.
+    * The record is written and the value is stored while
+    * holding the buffer's latch, as for any update.
+    * @see simpledb.tx.recovery.LogRecord#compensate(int, long)
+    */
+   public long compensate(int txnum, long prevLSN) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      long lsn;
+      synchronized (buff) {
+         int curval = buff.getInt(offset);
+         lsn = new SetIntRecord(txnum, prevLSN, this.prevLSN, blk, offset, curval, oldval).writeToLog();
+         buff.setInt(offset, oldval, txnum, lsn);
+      }
       buffMgr.unpin(buff);
+      return lsn;
    }
 }
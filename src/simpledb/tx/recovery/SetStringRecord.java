@@ -7,47 +7,58 @@ import simpledb.log.BasicLogRecord;
 
 class SetStringRecord implements LogRecord {
    private int txnum, offset;
-   private String val;
+   private String oldval, newval;
    private Block blk;
+   private long prevLSN, undoNextLSN;
    
    /**
     * Creates a new setstring log record.
     * @param txnum the ID of the specified transaction
+    * @param prevLSN the LSN of the transaction's previous log record
+    * @param undoNextLSN for a compensation record, the LSN of the next record to undo; otherwise -1
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the previous value
+    * @param newval the new value
     */
-   public SetStringRecord(int txnum, Block blk, int offset, String val) {
+   public SetStringRecord(int txnum, long prevLSN, long undoNextLSN, Block blk, int offset, String oldval, String newval) {
       this.txnum = txnum;
+      this.prevLSN = prevLSN;
+      this.undoNextLSN = undoNextLSN;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
    }
    
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading eight other values from the log.
     * @param rec the basic log record
     */
    public SetStringRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
+      prevLSN = rec.nextLong();
+      undoNextLSN = rec.nextLong();
       String filename = rec.nextString();
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextString();
+      oldval = rec.nextString();
+      newval = rec.nextString();
    }
    
    /** 
     * Writes a setString record to the log.
     * This log record contains the SETSTRING operator,
-    * followed by the transaction id, the filename, number,
+    * followed by the transaction id, the LSN of the
+    * transaction's previous record, the undo-next LSN, the filename, number,
     * and offset of the modified block, and the previous
-    * string value at that offset.
+    * and new string values at that offset.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETSTRING, txnum, blk.fileName(),
-         blk.number(), offset, val};
+   public long writeToLog() {
+      Object[] rec = new Object[] {SETSTRING, txnum, prevLSN, undoNextLSN, blk.fileName(),
+         blk.number(), offset, oldval, newval};
       return logMgr.append(rec);
    }
    
@@ -59,8 +70,20 @@ class SetStringRecord implements LogRecord {
       return txnum;
    }
    
+   public long prevLSN() {
+      return prevLSN;
+   }
+   
+   public long undoNextLSN() {
+      return undoNextLSN;
+   }
+   
+   public Block block() {
+      return blk;
+   }
+   
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + ">";
    }
    
    /** 
@@ -73,7 +96,48 @@ class SetStringRecord implements LogRecord {
    public void undo(int txnum) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setString(offset, val, txnum, -1);
+      buff.setString(offset, oldval, txnum, -1);
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Stores the new value saved in the log record,
+    * unless the page LSN shows that the page already holds it.
+    * The method pins a buffer to the specified block,
+    * calls setString to store the value with the LSN
+    * of the log record, and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
+    */
+   public void redo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      synchronized (buff) {
+         if (lsn > buff.pageLSN())
+            buff.setString(offset, newval, txnum, lsn);
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Restores the previous value saved in the log record,
+    * logging the change as a compensation record.
+    * The compensation record is an ordinary setstring record,
+    * which restores the value when it is redone,
+    * with the previous LSN of this record as its undo-next LSN.
+    * The record is written and the value is stored while
+    * holding the buffer's latch, as for any update.
+    * @see simpledb.tx.recovery.LogRecord#compensate(int, long)
+    */
+   public long compensate(int txnum, long prevLSN) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      long lsn;
+      synchronized (buff) {
+         String curval = buff.getString(offset);
+         lsn = new SetStringRecord(txnum, prevLSN, this.prevLSN, blk, offset, curval, oldval).writeToLog();
+         buff.setString(offset, oldval, txnum, lsn);
+      }
       buffMgr.unpin(buff);
+      return lsn;
    }
 }
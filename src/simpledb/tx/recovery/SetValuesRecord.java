@@ -0,0 +1,231 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import simpledb.buffer.*;
+import simpledb.file.Block;
+import simpledb.log.*;
+import java.util.*;
+
+/**
+ * A compound update record, which saves the previous and new values
+ * of several fields of a block in a single log record.
+ * It is written when a transaction sets several values
+ * of a block at once, such as the fields of an inserted record,
+ * so that the change takes one log append instead of one per field,
+ * and the transaction id and block are stored only once.
+ */
+class SetValuesRecord implements LogRecord {
+   private int txnum;
+   private long prevLSN, undoNextLSN;
+   private Block blk;
+   private Map<Integer,Object> oldvals, newvals;
+
+   /**
+    * Creates a new setvalues log record.
+    * The two maps must have the same offsets, in the same order.
+    * @param txnum the ID of the specified transaction
+    * @param prevLSN the LSN of the transaction's previous log record
+    * @param undoNextLSN for a compensation record, the LSN of the next record to undo; otherwise -1
+    * @param blk the block containing the values
+    * @param oldvals the previous values, keyed by their offset in the block
+    * @param newvals the new values, keyed by their offset in the block
+    */
+   public SetValuesRecord(int txnum, long prevLSN, long undoNextLSN, Block blk,
+                          Map<Integer,Object> oldvals, Map<Integer,Object> newvals) {
+      this.txnum = txnum;
+      this.prevLSN = prevLSN;
+      this.undoNextLSN = undoNextLSN;
+      this.blk = blk;
+      this.oldvals = oldvals;
+      this.newvals = newvals;
+   }
+
+   /**
+    * Creates a log record by reading the values from the log.
+    * Each pair of saved values is preceded by its type
+    * (SETINT or SETSTRING) and its offset.
+    * @param rec the basic log record
+    */
+   public SetValuesRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      prevLSN = rec.nextLong();
+      undoNextLSN = rec.nextLong();
+      String filename = rec.nextString();
+      int blknum = rec.nextInt();
+      blk = new Block(filename, blknum);
+      int count = rec.nextInt();
+      oldvals = new LinkedHashMap<Integer,Object>();
+      newvals = new LinkedHashMap<Integer,Object>();
+      for (int i=0; i<count; i++) {
+         int type = rec.nextInt();
+         int offset = rec.nextInt();
+         if (type == SETINT) {
+            oldvals.put(offset, rec.nextInt());
+            newvals.put(offset, rec.nextInt());
+         }
+         else {
+            oldvals.put(offset, rec.nextString());
+            newvals.put(offset, rec.nextString());
+         }
+      }
+   }
+
+   /**
+    * Writes the setvalues records for the specified values to the log.
+    * The values are split among as many records
+    * as needed for each record to fit into a log block,
+    * each record chained to the one before it.
+    * A page modified by the records must be redone from the first one,
+    * and so its LSN is returned as well as that of the last.
+    * @param txnum the ID of the specified transaction
+    * @param prevLSN the LSN of the transaction's previous log record
+    * @param undoNextLSN for compensation records, the LSN of the next record to undo; otherwise -1
+    * @param blk the block containing the values
+    * @param oldvals the previous values, keyed by their offset in the block
+    * @param newvals the new values, keyed by their offset in the block
+    * @return the LSNs of the first and last records
+    */
+   static long[] writeToLog(int txnum, long prevLSN, long undoNextLSN, Block blk,
+                          Map<Integer,Object> oldvals, Map<Integer,Object> newvals) {
+      Map<Integer,Object> oldchunk = new LinkedHashMap<Integer,Object>();
+      Map<Integer,Object> newchunk = new LinkedHashMap<Integer,Object>();
+      int header = LogMgr.size(SETVALUES) + LogMgr.size(txnum) + LogMgr.size(prevLSN)
+            + LogMgr.size(undoNextLSN) + LogMgr.size(blk.fileName()) + LogMgr.size(blk.number())
+            + LogMgr.size(oldvals.size());
+      int recsize = header;
+      long firstLSN = -1;
+      for (Map.Entry<Integer,Object> e : oldvals.entrySet()) {
+         int offset = e.getKey();
+         int entrysize = 2 * LogMgr.size(offset)
+               + LogMgr.size(e.getValue()) + LogMgr.size(newvals.get(offset));
+         if (!oldchunk.isEmpty() && recsize + entrysize > LogMgr.maxRecordSize()) {
+            prevLSN = new SetValuesRecord(txnum, prevLSN, undoNextLSN, blk, oldchunk, newchunk).writeToLog();
+            if (firstLSN < 0)
+               firstLSN = prevLSN;
+            oldchunk = new LinkedHashMap<Integer,Object>();
+            newchunk = new LinkedHashMap<Integer,Object>();
+            recsize = header;
+         }
+         oldchunk.put(offset, e.getValue());
+         newchunk.put(offset, newvals.get(offset));
+         recsize += entrysize;
+      }
+      long lastLSN = new SetValuesRecord(txnum, prevLSN, undoNextLSN, blk, oldchunk, newchunk).writeToLog();
+      return new long[] {(firstLSN < 0) ? lastLSN : firstLSN, lastLSN};
+   }
+
+   /**
+    * Writes a setvalues record to the log.
+    * This log record contains the SETVALUES operator,
+    * followed by the transaction id, the LSN of the
+    * transaction's previous record, the undo-next LSN, the filename and number
+    * of the modified block, the number of values,
+    * and the type, offset, previous value and new value of each one.
+    * @return the LSN of the record
+    */
+   public long writeToLog() {
+      return logMgr.append(toArray());
+   }
+
+   public int op() {
+      return SETVALUES;
+   }
+
+   public int txNumber() {
+      return txnum;
+   }
+
+   public long prevLSN() {
+      return prevLSN;
+   }
+
+   public long undoNextLSN() {
+      return undoNextLSN;
+   }
+
+   public Block block() {
+      return blk;
+   }
+
+   public String toString() {
+      return "<SETVALUES " + txnum + " " + blk + " " + oldvals + " " + newvals + ">";
+   }
+
+   /**
+    * Replaces the data values with the previous values saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setValues to restore the saved values
+    * (using a dummy LSN), and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    */
+   public void undo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setValues(oldvals, txnum, -1);
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Stores the new values saved in the log record,
+    * unless the page LSN shows that the page already holds them.
+    * The method pins a buffer to the specified block,
+    * calls setValues to store the values with the LSN
+    * of the log record, and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int, long)
+    */
+   public void redo(int txnum, long lsn) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      synchronized (buff) {
+         if (lsn > buff.pageLSN())
+            buff.setValues(newvals, txnum, lsn);
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Restores the previous values saved in the log record,
+    * logging the change as a compensation record.
+    * The compensation records are ordinary setvalues records,
+    * which restore the values when they are redone,
+    * with the previous LSN of this record as their undo-next LSN.
+    * @see simpledb.tx.recovery.LogRecord#compensate(int, long)
+    */
+   public long compensate(int txnum, long prevLSN) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      long[] lsns;
+      synchronized (buff) {
+         Map<Integer,Object> curvals = new LinkedHashMap<Integer,Object>();
+         for (Map.Entry<Integer,Object> e : oldvals.entrySet()) {
+            int offset = e.getKey();
+            if (e.getValue() instanceof String)
+               curvals.put(offset, buff.getString(offset));
+            else
+               curvals.put(offset, buff.getInt(offset));
+         }
+         lsns = writeToLog(txnum, prevLSN, this.prevLSN, blk, curvals, oldvals);
+         buff.setValues(oldvals, txnum, lsns[0], lsns[1]);
+      }
+      buffMgr.unpin(buff);
+      return lsns[1];
+   }
+
+   private Object[] toArray() {
+      List<Object> rec = new ArrayList<Object>();
+      rec.add(SETVALUES);
+      rec.add(txnum);
+      rec.add(prevLSN);
+      rec.add(undoNextLSN);
+      rec.add(blk.fileName());
+      rec.add(blk.number());
+      rec.add(oldvals.size());
+      for (Map.Entry<Integer,Object> e : oldvals.entrySet()) {
+         rec.add((e.getValue() instanceof String) ? SETSTRING : SETINT);
+         rec.add(e.getKey());
+         rec.add(e.getValue());
+         rec.add(newvals.get(e.getKey()));
+      }
+      return rec.toArray();
+   }
+}
@@ -1,5 +1,6 @@
 package simpledb.tx.recovery;
 
+import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
 
 class StartRecord implements LogRecord {
@@ -27,7 +28,7 @@ class StartRecord implements LogRecord {
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {START, txnum};
       return logMgr.append(rec);
    }
@@ -40,12 +41,51 @@ class StartRecord implements LogRecord {
       return txnum;
    }
    
+   /**
+    * A start record ends its transaction's chain,
+    * and so the method returns a "dummy", negative LSN.
+    */
+   public long prevLSN() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * Returns a "dummy", negative LSN, because
+    * only a compensation record has an undo-next LSN.
+    */
+   public long undoNextLSN() {
+      return -1; // dummy value
+   }
+   
+   /**
+    * A start record modifies no block,
+    * and so the method returns null.
+    */
+   public Block block() {
+      return null;
+   }
+   
    /**
     * Does nothing, because a start record
     * contains no undo information.
     */
    public void undo(int txnum) {}
    
+   /**
+    * Does nothing, because a start record
+    * contains no redo information.
+    */
+   public void redo(int txnum, long lsn) {}
+   
+   /**
+    * Does nothing, because a start record
+    * contains no undo information,
+    * and returns the specified LSN.
+    */
+   public long compensate(int txnum, long prevLSN) {
+      return prevLSN;
+   }
+   
    public String toString() {
       return "<START " + txnum + ">";
    }